@@ -0,0 +1,659 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ManifestDigest;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.content.pm.PackageUserState;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.Button;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import libcore.io.IoUtils;
+
+/**
+ * Installs a batch of APKs after a single review of the permissions they request together, for
+ * provisioning devices with many apps. Only apps holding {@code INSTALL_PACKAGES} may start it.
+ *
+ * <p>The data of the intent is the {@code file} URI of either a directory, all of whose
+ * {@code .apk} files are installed, or a text file listing the APKs to install, one path per
+ * line; relative paths are resolved against the directory of the list, and blank lines and lines
+ * starting with {@code #} are ignored.
+ *
+ * <p>The APKs are parsed in parallel, then streamed into install sessions and committed through
+ * {@link InstallService}, which bounds how many of them are installed at once. A package which
+ * requires a shared library declared by another package of the batch is only installed once that
+ * package has been installed, and is failed with {@code INSTALL_FAILED_MISSING_SHARED_LIBRARY} if
+ * it could not be.
+ *
+ * <p>The result lists each package, or the path of each APK that could not be parsed, in
+ * {@link #EXTRA_PACKAGE_NAMES} and its package manager result in {@link #EXTRA_INSTALL_RESULTS}.
+ */
+public class BatchInstallActivity extends Activity implements OnClickListener {
+    private static final String TAG = "BatchInstallActivity";
+
+    static final String EXTRA_PACKAGE_NAMES = PackageUtil.PREFIX + "packageNames";
+    static final String EXTRA_INSTALL_RESULTS = PackageUtil.PREFIX + "installResults";
+
+    private static final String APK_SUFFIX = ".apk";
+    private static final String COMMENT_PREFIX = "#";
+
+    /** Status of an entry which has not finished installing; install results are never 0. */
+    private static final int STATUS_PENDING = 0;
+
+    /**
+     * APK of the batch. Built on a worker thread and then only accessed on the main thread.
+     */
+    private static final class BatchEntry {
+        final File file;
+        PackageInfo pkgInfo;
+        ManifestDigest pkgDigest;
+        CharSequence label;
+        List<String> libraryNames;
+        List<String> usesLibraries;
+        InstallSizeEstimate sizeEstimate;
+        int locationFlags;
+        long requiredFreeBytes;
+        /** Entries declaring the libraries this one requires, which must be installed first. */
+        final ArrayList<BatchEntry> dependencies = new ArrayList<BatchEntry>();
+        int jobId;
+        int legacyStatus = STATUS_PENDING;
+
+        BatchEntry(File file) {
+            this.file = file;
+        }
+    }
+
+    private static final class LoadResult {
+        /** Parsed entries, in the order they may be installed in. */
+        final ArrayList<BatchEntry> entries = new ArrayList<BatchEntry>();
+        final ArrayList<File> invalidFiles = new ArrayList<File>();
+        PermissionListAdapter.Rows permissionRows;
+    }
+
+    private File mSource;
+    private LoadBatchTask mLoadTask;
+    private ArrayList<BatchEntry> mEntries;
+    private ArrayList<File> mInvalidFiles;
+    private int mFinishedCount;
+    private int mSucceededCount;
+    private boolean mPermissionsDisplayed;
+
+    // Phases of the batch, in elapsed realtime milliseconds
+    private long mStartMillis;
+    private long mLoadedMillis;
+    private long mInstallStartMillis;
+
+    private InstallService mInstallService;
+    private boolean mBound;
+
+    private TextView mTitle;
+    private ProgressBar mProgressBar;
+    private PermissionListView mScrollView;
+    private TextView mReport;
+    private Button mOk;
+    private Button mCancel;
+    private boolean mOkCanInstall;
+    private boolean mDone;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mInstallService = ((InstallService.LocalBinder) service).getService();
+            submitReadyEntries();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mInstallService = null;
+        }
+    };
+
+    /**
+     * Records the result of the install of an entry and installs the entries it unblocks.
+     */
+    private class EntryListener implements InstallService.Listener {
+        private final BatchEntry mEntry;
+
+        EntryListener(BatchEntry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        public void onInstallProgress(float progress) {
+        }
+
+        @Override
+        public void onInstallFinished(int legacyStatus) {
+            mEntry.jobId = 0;
+            setEntryFinished(mEntry, legacyStatus);
+            submitReadyEntries();
+        }
+    }
+
+    private class LoadBatchTask extends AsyncTask<Void, Void, LoadResult> {
+        @Override
+        protected LoadResult doInBackground(Void... params) {
+            return loadBatch();
+        }
+
+        @Override
+        protected void onPostExecute(LoadResult result) {
+            mLoadTask = null;
+            if (!isFinishing() && !isDestroyed()) {
+                onBatchLoaded(result);
+            }
+        }
+    }
+
+    @Override
+    protected void onCreate(Bundle icicle) {
+        super.onCreate(icicle);
+        mStartMillis = SystemClock.elapsedRealtime();
+
+        final Uri uri = getIntent().getData();
+        if (uri == null || !"file".equals(uri.getScheme()) || uri.getPath() == null) {
+            Log.w(TAG, "Unsupported batch " + uri);
+            setResult(RESULT_FIRST_USER);
+            finish();
+            return;
+        }
+        mSource = new File(uri.getPath());
+
+        setContentView(R.layout.batch_install);
+        mTitle = (TextView) findViewById(R.id.batch_title);
+        mProgressBar = (ProgressBar) findViewById(R.id.progress_bar);
+        mScrollView = (PermissionListView) findViewById(R.id.scrollview);
+        mReport = (TextView) findViewById(R.id.report);
+        mOk = (Button) findViewById(R.id.ok_button);
+        mCancel = (Button) findViewById(R.id.cancel_button);
+        mOk.setOnClickListener(this);
+        mCancel.setOnClickListener(this);
+
+        mLoadTask = new LoadBatchTask();
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
+        unbindInstallService();
+    }
+
+    /**
+     * Lists, parses and orders the APKs of the batch. Runs on a worker thread and must not modify
+     * any state of the activity.
+     */
+    private LoadResult loadBatch() {
+        final LoadResult result = new LoadResult();
+        final List<File> files = listApks(mSource);
+        final List<BatchEntry> parsed = parseApks(files, result.invalidFiles);
+        result.entries.addAll(sortByDependencies(parsed));
+        placeEntries(result.entries);
+        result.permissionRows = PermissionListAdapter.load(this,
+                PermissionInfoCache.getInstance(this), mergePermissions(result.entries), null);
+        return result;
+    }
+
+    private static List<File> listApks(File source) {
+        final ArrayList<File> files = new ArrayList<File>();
+        if (source.isDirectory()) {
+            final File[] children = source.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isFile() && child.getName().endsWith(APK_SUFFIX)) {
+                        files.add(child);
+                    }
+                }
+            }
+            return files;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(source));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+                final File file = new File(line);
+                files.add(file.isAbsolute() ? file : new File(source.getParentFile(), line));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + source, e);
+        } finally {
+            IoUtils.closeQuietly(reader);
+        }
+        return files;
+    }
+
+    /**
+     * Parses the specified APKs on a pool with a thread per CPU. APKs which cannot be parsed are
+     * added to {@code invalidFiles}. The entries are returned in the order of the files.
+     */
+    private List<BatchEntry> parseApks(List<File> files, List<File> invalidFiles) {
+        final ArrayList<BatchEntry> entries = new ArrayList<BatchEntry>(files.size());
+        if (files.isEmpty()) {
+            return entries;
+        }
+        final int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final ArrayList<Future<BatchEntry>> futures =
+                    new ArrayList<Future<BatchEntry>>(files.size());
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<BatchEntry>() {
+                    @Override
+                    public BatchEntry call() {
+                        return parseApk(file);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                BatchEntry entry = null;
+                try {
+                    entry = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to parse " + files.get(i), e.getCause());
+                } catch (InterruptedException e) {
+                    // The load has been cancelled.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (entry != null) {
+                    entries.add(entry);
+                } else {
+                    invalidFiles.add(files.get(i));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return entries;
+    }
+
+    private BatchEntry parseApk(File file) {
+        final PackageParser.Package parsed = PackageUtil.getPackageInfoLite(file);
+        if (parsed == null) {
+            return null;
+        }
+        final BatchEntry entry = new BatchEntry(file);
+        entry.pkgInfo = PackageParser.generatePackageInfo(parsed, null,
+                PackageManager.GET_PERMISSIONS, 0, 0, null, new PackageUserState());
+        entry.pkgDigest = parsed.manifestDigest;
+        entry.libraryNames = parsed.libraryNames;
+        entry.usesLibraries = parsed.usesLibraries;
+        entry.sizeEstimate = InstallSizeEstimate.estimate(file);
+        entry.label = PackageUtil.getAppSnippet(this, entry.pkgInfo.applicationInfo, file).label;
+        return entry;
+    }
+
+    /**
+     * Orders the entries so that each comes after the entries declaring the shared libraries it
+     * requires, and otherwise keeps their order. Entries in a dependency cycle are moved last and
+     * lose their dependencies; the package manager fails them if a library really is missing.
+     */
+    private static List<BatchEntry> sortByDependencies(List<BatchEntry> entries) {
+        final HashMap<String, BatchEntry> providers = new HashMap<String, BatchEntry>();
+        for (BatchEntry entry : entries) {
+            if (entry.libraryNames != null) {
+                for (String library : entry.libraryNames) {
+                    providers.put(library, entry);
+                }
+            }
+        }
+        for (BatchEntry entry : entries) {
+            if (entry.usesLibraries == null) {
+                continue;
+            }
+            for (String library : entry.usesLibraries) {
+                final BatchEntry provider = providers.get(library);
+                if (provider != null && provider != entry
+                        && !entry.dependencies.contains(provider)) {
+                    entry.dependencies.add(provider);
+                }
+            }
+        }
+
+        final ArrayList<BatchEntry> sorted = new ArrayList<BatchEntry>(entries.size());
+        final HashSet<BatchEntry> placed = new HashSet<BatchEntry>();
+        boolean progress = true;
+        while (progress && sorted.size() < entries.size()) {
+            progress = false;
+            for (BatchEntry entry : entries) {
+                if (!placed.contains(entry) && placed.containsAll(entry.dependencies)) {
+                    sorted.add(entry);
+                    placed.add(entry);
+                    progress = true;
+                }
+            }
+        }
+        for (BatchEntry entry : entries) {
+            if (!placed.contains(entry)) {
+                Log.w(TAG, "Shared library cycle involving " + entry.pkgInfo.packageName);
+                entry.dependencies.clear();
+                sorted.add(entry);
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Decides where each entry is installed, accounting for the space taken by the entries
+     * installed before it. Runs on a worker thread.
+     */
+    private void placeEntries(List<BatchEntry> entries) {
+        final InstallLocationPolicy policy = InstallLocationPolicy.measure(this);
+        final InstalledPackageIndex index = InstalledPackageIndex.getInstance(this);
+        for (BatchEntry entry : entries) {
+            entry.locationFlags = policy.getInstallFlags(
+                    entry.pkgInfo.applicationInfo.installLocation, entry.sizeEstimate,
+                    index.get(entry.pkgInfo.packageName) != null);
+            entry.requiredFreeBytes = policy.getRequiredInternalFreeBytes(
+                    InstallLocationPolicy.isExternal(entry.locationFlags, null),
+                    entry.sizeEstimate);
+            policy.reserve(entry.locationFlags, entry.sizeEstimate);
+        }
+    }
+
+    /**
+     * Returns a package requesting every permission requested by any of the entries, so that
+     * they can be reviewed at once. It is not named after any installed package, so none of its
+     * permissions count as already granted.
+     */
+    private static PackageInfo mergePermissions(List<BatchEntry> entries) {
+        final LinkedHashMap<String, Integer> permissions = new LinkedHashMap<String, Integer>();
+        for (BatchEntry entry : entries) {
+            final String[] requested = entry.pkgInfo.requestedPermissions;
+            if (requested == null) {
+                continue;
+            }
+            for (int i = 0; i < requested.length; i++) {
+                final Integer flags = permissions.get(requested[i]);
+                permissions.put(requested[i], entry.pkgInfo.requestedPermissionsFlags[i]
+                        | ((flags != null) ? flags : 0));
+            }
+        }
+        final PackageInfo merged = new PackageInfo();
+        if (!permissions.isEmpty()) {
+            merged.requestedPermissions = new String[permissions.size()];
+            merged.requestedPermissionsFlags = new int[permissions.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> permission : permissions.entrySet()) {
+                merged.requestedPermissions[i] = permission.getKey();
+                merged.requestedPermissionsFlags[i] = permission.getValue();
+                i++;
+            }
+        }
+        return merged;
+    }
+
+    private void onBatchLoaded(LoadResult result) {
+        mLoadedMillis = SystemClock.elapsedRealtime();
+        mEntries = result.entries;
+        mInvalidFiles = result.invalidFiles;
+        mProgressBar.setVisibility(View.GONE);
+
+        for (File file : mInvalidFiles) {
+            appendReport(getString(R.string.batch_install_report_failed, file.getPath(),
+                    PackageManager.INSTALL_FAILED_INVALID_APK));
+        }
+        if (mEntries.isEmpty()) {
+            mTitle.setText(R.string.batch_install_empty);
+            onBatchFinished();
+            return;
+        }
+        for (BatchEntry entry : mEntries) {
+            appendReport(getString(R.string.batch_install_report_pending, entry.label,
+                    entry.pkgInfo.packageName));
+        }
+
+        final int NP = result.permissionRows.personalCount;
+        final int ND = result.permissionRows.deviceCount;
+        mPermissionsDisplayed = NP > 0 || ND > 0;
+        mOk.setEnabled(true);
+        if (!mPermissionsDisplayed) {
+            mTitle.setText(getString(R.string.batch_install_confirm_question_no_perms,
+                    mEntries.size()));
+            mOk.setText(R.string.install);
+            mOkCanInstall = true;
+            return;
+        }
+
+        mTitle.setText(getString(R.string.batch_install_confirm_question, mEntries.size()));
+        mScrollView.setAdapter(new PermissionListAdapter(this, result.permissionRows));
+        mScrollView.setVisibility(View.VISIBLE);
+        mScrollView.setFullScrollAction(new Runnable() {
+            @Override
+            public void run() {
+                mOk.setText(R.string.install);
+                mOkCanInstall = true;
+            }
+        });
+    }
+
+    @Override
+    public void onClick(View v) {
+        if (v == mOk) {
+            if (mDone) {
+                finish();
+            } else if (mOkCanInstall) {
+                startBatchInstall();
+            } else {
+                mScrollView.pageDown();
+            }
+        } else if (v == mCancel) {
+            setResult(RESULT_CANCELED);
+            finish();
+        }
+    }
+
+    private void startBatchInstall() {
+        mInstallStartMillis = SystemClock.elapsedRealtime();
+        mScrollView.setVisibility(View.GONE);
+        mCancel.setVisibility(View.GONE);
+        mOk.setEnabled(false);
+        mReport.setText(null);
+        mProgressBar.setIndeterminate(false);
+        mProgressBar.setMax(mEntries.size());
+        mProgressBar.setProgress(0);
+        mProgressBar.setVisibility(View.VISIBLE);
+        mTitle.setText(getString(R.string.batch_install_installing, 0, mEntries.size()));
+        mBound = bindService(new Intent(this, InstallService.class), mConnection,
+                Context.BIND_AUTO_CREATE);
+    }
+
+    /**
+     * Queues the install of every pending entry whose dependencies have been installed, and fails
+     * those with a dependency that could not be. {@link InstallService} decides how many of them
+     * run at once.
+     */
+    private void submitReadyEntries() {
+        if (mInstallService == null) {
+            return;
+        }
+        // Entries come after their dependencies, so a failure propagates in a single pass.
+        for (BatchEntry entry : mEntries) {
+            if (entry.jobId != 0 || entry.legacyStatus != STATUS_PENDING) {
+                continue;
+            }
+            boolean ready = true;
+            boolean dependencyFailed = false;
+            for (BatchEntry dependency : entry.dependencies) {
+                if (dependency.legacyStatus == STATUS_PENDING) {
+                    ready = false;
+                } else if (dependency.legacyStatus != PackageManager.INSTALL_SUCCEEDED) {
+                    dependencyFailed = true;
+                }
+            }
+            if (dependencyFailed) {
+                setEntryFinished(entry, PackageManager.INSTALL_FAILED_MISSING_SHARED_LIBRARY);
+            } else if (ready) {
+                entry.jobId = mInstallService.startInstall(createInstallRequest(entry));
+                mInstallService.attach(entry.jobId, new EntryListener(entry));
+            }
+        }
+        if (mFinishedCount == mEntries.size()) {
+            onBatchFinished();
+        }
+    }
+
+    private Intent createInstallRequest(BatchEntry entry) {
+        final InstallFlowAnalytics analytics = new InstallFlowAnalytics();
+        analytics.setContext(this);
+        analytics.setStartTimestampMillis(mStartMillis);
+        analytics.setPackageUri(Uri.fromFile(entry.file).toString());
+        analytics.setFileUri(true);
+        analytics.setPackageInfoObtained(mLoadedMillis);
+        analytics.setPermissionsDisplayed(mPermissionsDisplayed);
+        analytics.setAllPermissionsDisplayed(mPermissionsDisplayed);
+        analytics.setInstallButtonClicked();
+
+        final Intent request = new Intent();
+        request.setData(Uri.fromFile(entry.file));
+        request.putExtra(PackageUtil.INTENT_ATTR_APPLICATION_INFO, entry.pkgInfo.applicationInfo);
+        request.putExtra(InstallService.EXTRA_LABEL, entry.label);
+        request.putExtra(InstallService.EXTRA_STREAM_INTO_SESSION, true);
+        request.putExtra(InstallService.EXTRA_LOCATION_FLAGS, entry.locationFlags);
+        request.putExtra(InstallService.EXTRA_REQUIRED_FREE_BYTES, entry.requiredFreeBytes);
+        request.putExtra(InstallAppProgress.EXTRA_MANIFEST_DIGEST, entry.pkgDigest);
+        request.putExtra(InstallAppProgress.EXTRA_INSTALL_FLOW_ANALYTICS, analytics);
+        final String installerPackageName = getIntent().getStringExtra(
+                Intent.EXTRA_INSTALLER_PACKAGE_NAME);
+        if (installerPackageName != null) {
+            request.putExtra(Intent.EXTRA_INSTALLER_PACKAGE_NAME, installerPackageName);
+        }
+        return request;
+    }
+
+    private void setEntryFinished(BatchEntry entry, int legacyStatus) {
+        entry.legacyStatus = legacyStatus;
+        mFinishedCount++;
+        if (legacyStatus == PackageManager.INSTALL_SUCCEEDED) {
+            mSucceededCount++;
+            appendReport(getString(R.string.batch_install_report_installed, entry.label));
+        } else {
+            appendReport(getString(R.string.batch_install_report_failed, entry.label,
+                    legacyStatus));
+        }
+        mProgressBar.setProgress(mFinishedCount);
+        mTitle.setText(getString(R.string.batch_install_installing, mFinishedCount,
+                mEntries.size()));
+    }
+
+    private void onBatchFinished() {
+        final long now = SystemClock.elapsedRealtime();
+        final int count = mEntries.size() + mInvalidFiles.size();
+        final long parseMillis = mLoadedMillis - mStartMillis;
+        final long reviewMillis = (mInstallStartMillis != 0)
+                ? mInstallStartMillis - mLoadedMillis : 0;
+        final long installMillis = (mInstallStartMillis != 0) ? now - mInstallStartMillis : 0;
+        final int packagesPerMinute = (installMillis > 0)
+                ? (int) (mSucceededCount * 60000L / installMillis) : 0;
+        EventLogTags.writeInstallPackageBatch(count, mSucceededCount, (int) parseMillis,
+                (int) reviewMillis, (int) installMillis, packagesPerMinute);
+        Log.i(TAG, "Installed " + mSucceededCount + " of " + count + " packages from " + mSource
+                + ": parse " + parseMillis + " ms, review " + reviewMillis + " ms, install "
+                + installMillis + " ms, " + packagesPerMinute + " packages per minute");
+
+        final String[] packageNames = new String[count];
+        final int[] results = new int[count];
+        for (int i = 0; i < mEntries.size(); i++) {
+            packageNames[i] = mEntries.get(i).pkgInfo.packageName;
+            results[i] = mEntries.get(i).legacyStatus;
+        }
+        for (int i = 0; i < mInvalidFiles.size(); i++) {
+            packageNames[mEntries.size() + i] = mInvalidFiles.get(i).getPath();
+            results[mEntries.size() + i] = PackageManager.INSTALL_FAILED_INVALID_APK;
+        }
+        final Intent result = new Intent();
+        result.putExtra(EXTRA_PACKAGE_NAMES, packageNames);
+        result.putExtra(EXTRA_INSTALL_RESULTS, results);
+        setResult(RESULT_OK, result);
+
+        if (!mEntries.isEmpty()) {
+            mTitle.setText(getString(R.string.batch_install_done, mSucceededCount, count));
+        }
+        mProgressBar.setVisibility(View.GONE);
+        mCancel.setVisibility(View.GONE);
+        mOk.setText(R.string.done);
+        mOk.setEnabled(true);
+        mDone = true;
+        unbindInstallService();
+    }
+
+    private void appendReport(CharSequence line) {
+        if (mReport.length() > 0) {
+            mReport.append("\n");
+        }
+        mReport.append(line);
+    }
+
+    private void unbindInstallService() {
+        if (mInstallService != null && mEntries != null) {
+            // The installs still queued keep running and are logged by the service.
+            for (BatchEntry entry : mEntries) {
+                if (entry.jobId != 0) {
+                    mInstallService.detach(entry.jobId);
+                }
+            }
+        }
+        mInstallService = null;
+        if (mBound) {
+            unbindService(mConnection);
+            mBound = false;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.IPackageDeleteObserver;
+import android.content.pm.IPackageDeleteObserver2;
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uninstalls a list of packages after a single confirmation, for tools resetting devices. Only
+ * apps holding {@code DELETE_PACKAGES} may start it.
+ *
+ * <p>The packages are given in {@link #EXTRA_PACKAGE_NAMES}, and {@link Intent#EXTRA_USER} and
+ * {@link Intent#EXTRA_UNINSTALL_ALL_USERS} apply to all of them as they do for
+ * {@link UninstallerActivity}. Up to {@link #EXTRA_MAX_CONCURRENT_DELETES} deletes are kept in
+ * flight with the package manager, so that the next delete is already queued when one finishes.
+ *
+ * <p>The result lists each package in {@link #EXTRA_PACKAGE_NAMES} and its package manager result
+ * in {@link #EXTRA_DELETE_RESULTS}. The {@link PackageInstaller#EXTRA_CALLBACK} observer, if any,
+ * is called once for the whole batch: with {@link PackageManager#DELETE_SUCCEEDED} if every
+ * package was deleted, and otherwise with the name and result of the first package which was
+ * not.
+ */
+public class BatchUninstallActivity extends Activity {
+    private static final String TAG = "BatchUninstallActivity";
+
+    static final String EXTRA_PACKAGE_NAMES = BatchInstallActivity.EXTRA_PACKAGE_NAMES;
+    static final String EXTRA_DELETE_RESULTS = PackageUtil.PREFIX + "deleteResults";
+    static final String EXTRA_MAX_CONCURRENT_DELETES = PackageUtil.PREFIX + "maxConcurrentDeletes";
+
+    private static final int DEFAULT_MAX_CONCURRENT_DELETES = 4;
+    private static final int MAX_CONCURRENT_DELETES = 16;
+
+    /** Status of a target which has not been deleted yet; delete results are never 0. */
+    private static final int STATUS_PENDING = 0;
+
+    public static class ConfirmDialogFragment extends DialogFragment implements
+            DialogInterface.OnClickListener {
+
+        @Override
+        public Dialog onCreateDialog(Bundle savedInstanceState) {
+            final BatchUninstallActivity activity = (BatchUninstallActivity) getActivity();
+            final int count = activity.mPendingTargets.size();
+            final StringBuilder messageBuilder = new StringBuilder();
+            if (activity.mAllUsers && UserManager.get(activity).getUserCount() >= 2) {
+                messageBuilder.append(getString(R.string.batch_uninstall_text_all_users, count));
+            } else {
+                messageBuilder.append(getString(R.string.batch_uninstall_text, count));
+            }
+            messageBuilder.append("\n");
+            for (Target target : activity.mPendingTargets) {
+                messageBuilder.append("\n").append(target.label);
+            }
+
+            return new AlertDialog.Builder(activity)
+                    .setTitle(R.string.batch_uninstall_title)
+                    .setMessage(messageBuilder.toString())
+                    .setPositiveButton(android.R.string.ok, this)
+                    .setNegativeButton(android.R.string.cancel, this)
+                    .create();
+        }
+
+        @Override
+        public void onClick(DialogInterface dialog, int which) {
+            if (which == Dialog.BUTTON_POSITIVE) {
+                ((BatchUninstallActivity) getActivity()).startBatchUninstall();
+            }
+        }
+
+        @Override
+        public void onDismiss(DialogInterface dialog) {
+            super.onDismiss(dialog);
+            final BatchUninstallActivity activity = (BatchUninstallActivity) getActivity();
+            if (activity != null && activity.mDeleter == null) {
+                activity.dispatchAborted();
+                activity.setResult(RESULT_CANCELED);
+                activity.finish();
+            }
+        }
+    }
+
+    public static class ProgressDialogFragment extends DialogFragment {
+
+        @Override
+        public Dialog onCreateDialog(Bundle savedInstanceState) {
+            final ProgressDialog dialog = new ProgressDialog(getActivity());
+            dialog.setIndeterminate(true);
+            dialog.setMessage(getString(R.string.uninstalling));
+            setCancelable(false);
+            return dialog;
+        }
+    }
+
+    /**
+     * Package of the batch. Built on a worker thread and then only accessed on the main thread.
+     */
+    private static final class Target {
+        final String packageName;
+        ApplicationInfo appInfo;
+        CharSequence label;
+        int result = STATUS_PENDING;
+
+        Target(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
+    /**
+     * Deletes packages while keeping up to a fixed number of deletes in flight. Results are
+     * recorded on the binder threads the package manager reports them on, and only the end of
+     * the whole batch is posted to the main thread.
+     */
+    private static final class BatchDeleter {
+        private final IPackageManager mPm;
+        private final String[] mPackageNames;
+        private final int mUserId;
+        private final int mFlags;
+        private final Handler mHandler;
+        private final Runnable mOnFinished;
+        private final int[] mResults;
+        private int mNext;
+        private int mFinishedCount;
+
+        BatchDeleter(IPackageManager pm, String[] packageNames, int userId, int flags,
+                Handler handler, Runnable onFinished) {
+            mPm = pm;
+            mPackageNames = packageNames;
+            mUserId = userId;
+            mFlags = flags;
+            mHandler = handler;
+            mOnFinished = onFinished;
+            mResults = new int[packageNames.length];
+        }
+
+        void start(int maxConcurrentDeletes) {
+            final int initialCount;
+            synchronized (this) {
+                initialCount = Math.min(maxConcurrentDeletes, mPackageNames.length);
+                mNext = initialCount;
+            }
+            for (int i = 0; i < initialCount; i++) {
+                delete(i);
+            }
+        }
+
+        /**
+         * Returns the result of each package, in the order they were given. Only complete once
+         * the batch has finished.
+         */
+        synchronized int[] getResults() {
+            return mResults.clone();
+        }
+
+        private void delete(final int index) {
+            try {
+                mPm.deletePackageAsUser(mPackageNames[index], new IPackageDeleteObserver.Stub() {
+                    @Override
+                    public void packageDeleted(String packageName, int returnCode) {
+                        onDeleted(index, returnCode);
+                    }
+                }, mUserId, mFlags);
+            } catch (RemoteException e) {
+                // Shouldn't happen.
+                Log.e(TAG, "Failed to talk to package manager", e);
+                onDeleteFailed(index);
+            }
+        }
+
+        /**
+         * Fails the specified package along with every package not yet handed to the package
+         * manager, which can't be reached for those either.
+         */
+        private void onDeleteFailed(int index) {
+            final boolean finished;
+            synchronized (this) {
+                mResults[index] = PackageManager.DELETE_FAILED_INTERNAL_ERROR;
+                mFinishedCount++;
+                while (mNext < mPackageNames.length) {
+                    mResults[mNext++] = PackageManager.DELETE_FAILED_INTERNAL_ERROR;
+                    mFinishedCount++;
+                }
+                finished = mFinishedCount == mPackageNames.length;
+            }
+            if (finished) {
+                mHandler.post(mOnFinished);
+            }
+        }
+
+        private void onDeleted(int index, int returnCode) {
+            final int next;
+            final boolean finished;
+            synchronized (this) {
+                mResults[index] = returnCode;
+                mFinishedCount++;
+                next = (mNext < mPackageNames.length) ? mNext++ : -1;
+                finished = mFinishedCount == mPackageNames.length;
+            }
+            if (next >= 0) {
+                delete(next);
+            }
+            if (finished) {
+                mHandler.post(mOnFinished);
+            }
+        }
+    }
+
+    private class LoadTargetsTask extends AsyncTask<Void, Void, List<Target>> {
+        @Override
+        protected List<Target> doInBackground(Void... params) {
+            return loadTargets();
+        }
+
+        @Override
+        protected void onPostExecute(List<Target> targets) {
+            mLoadTask = null;
+            if (!isFinishing() && !isDestroyed()) {
+                onTargetsLoaded(targets);
+            }
+        }
+    }
+
+    private final Handler mHandler = new Handler();
+
+    private String[] mPackageNames;
+    private UserHandle mUser;
+    private boolean mAllUsers;
+    private IBinder mCallback;
+    private int mMaxConcurrentDeletes;
+
+    private LoadTargetsTask mLoadTask;
+    private List<Target> mTargets;
+    /** Targets which are installed, and so will be deleted. */
+    private final ArrayList<Target> mPendingTargets = new ArrayList<Target>();
+    private BatchDeleter mDeleter;
+    private long mDeleteStartMillis;
+
+    @Override
+    public void onCreate(Bundle icicle) {
+        super.onCreate(icicle);
+        final Intent intent = getIntent();
+        mPackageNames = intent.getStringArrayExtra(EXTRA_PACKAGE_NAMES);
+        if (mPackageNames == null || mPackageNames.length == 0) {
+            Log.w(TAG, "No packages to uninstall");
+            setResult(RESULT_FIRST_USER);
+            finish();
+            return;
+        }
+        mAllUsers = intent.getBooleanExtra(Intent.EXTRA_UNINSTALL_ALL_USERS, false);
+        if (mAllUsers && UserHandle.myUserId() != UserHandle.USER_OWNER) {
+            throw new SecurityException("Only owner user can request uninstall for all users");
+        }
+        mUser = intent.getParcelableExtra(Intent.EXTRA_USER);
+        if (mUser == null) {
+            mUser = android.os.Process.myUserHandle();
+        } else {
+            UserManager userManager = (UserManager) getSystemService(Context.USER_SERVICE);
+            List<UserHandle> profiles = userManager.getUserProfiles();
+            if (!profiles.contains(mUser)) {
+                throw new SecurityException("User " + android.os.Process.myUserHandle() + " can't "
+                        + "request uninstall for user " + mUser);
+            }
+        }
+        mCallback = intent.getIBinderExtra(PackageInstaller.EXTRA_CALLBACK);
+        mMaxConcurrentDeletes = Math.max(1, Math.min(MAX_CONCURRENT_DELETES,
+                intent.getIntExtra(EXTRA_MAX_CONCURRENT_DELETES,
+                        DEFAULT_MAX_CONCURRENT_DELETES)));
+
+        mLoadTask = new LoadTargetsTask();
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
+    }
+
+    /**
+     * Looks up the packages and loads their labels. Runs on a worker thread and must not modify
+     * any state of the activity.
+     */
+    private List<Target> loadTargets() {
+        final IPackageManager pm = IPackageManager.Stub.asInterface(
+                ServiceManager.getService("package"));
+        final PackageManager packageManager = getPackageManager();
+        final ArrayList<Target> targets = new ArrayList<Target>(mPackageNames.length);
+        for (String packageName : mPackageNames) {
+            final Target target = new Target(packageName);
+            try {
+                target.appInfo = pm.getApplicationInfo(packageName,
+                        PackageManager.GET_UNINSTALLED_PACKAGES, mUser.getIdentifier());
+            } catch (RemoteException e) {
+                Log.e(TAG, "Unable to get packageName. Package manager is dead?");
+            }
+            if (target.appInfo != null) {
+                target.label = target.appInfo.loadLabel(packageManager);
+            } else {
+                // Fail it like the package manager would, without asking it.
+                Log.w(TAG, "Invalid packageName: " + packageName);
+                target.result = PackageManager.DELETE_FAILED_INTERNAL_ERROR;
+            }
+            targets.add(target);
+        }
+        return targets;
+    }
+
+    private void onTargetsLoaded(List<Target> targets) {
+        mTargets = targets;
+        for (Target target : targets) {
+            if (target.result == STATUS_PENDING) {
+                mPendingTargets.add(target);
+            }
+        }
+        if (mPendingTargets.isEmpty()) {
+            onBatchFinished();
+            return;
+        }
+        showDialogFragment(new ConfirmDialogFragment());
+    }
+
+    private void showDialogFragment(DialogFragment fragment) {
+        fragment.show(getFragmentManager(), "dialog");
+    }
+
+    void startBatchUninstall() {
+        final String[] packageNames = new String[mPendingTargets.size()];
+        for (int i = 0; i < packageNames.length; i++) {
+            packageNames[i] = mPendingTargets.get(i).packageName;
+        }
+        mDeleteStartMillis = SystemClock.elapsedRealtime();
+        mDeleter = new BatchDeleter(
+                IPackageManager.Stub.asInterface(ServiceManager.getService("package")),
+                packageNames, mUser.getIdentifier(),
+                mAllUsers ? PackageManager.DELETE_ALL_USERS : 0, mHandler, new Runnable() {
+            @Override
+            public void run() {
+                final int[] results = mDeleter.getResults();
+                for (int i = 0; i < results.length; i++) {
+                    mPendingTargets.get(i).result = results[i];
+                }
+                onBatchFinished();
+            }
+        });
+        showDialogFragment(new ProgressDialogFragment());
+        mDeleter.start(mMaxConcurrentDeletes);
+    }
+
+    private void onBatchFinished() {
+        final long deleteMillis = (mDeleter != null)
+                ? SystemClock.elapsedRealtime() - mDeleteStartMillis : 0;
+        final String[] packageNames = new String[mTargets.size()];
+        final int[] results = new int[mTargets.size()];
+        Target firstFailed = null;
+        int succeededCount = 0;
+        for (int i = 0; i < mTargets.size(); i++) {
+            final Target target = mTargets.get(i);
+            packageNames[i] = target.packageName;
+            results[i] = target.result;
+            if (target.result == PackageManager.DELETE_SUCCEEDED) {
+                succeededCount++;
+            } else if (firstFailed == null) {
+                firstFailed = target;
+            }
+        }
+        EventLogTags.writeUninstallPackageBatch(mTargets.size(), succeededCount,
+                (int) deleteMillis, mMaxConcurrentDeletes);
+        Log.i(TAG, "Uninstalled " + succeededCount + " of " + mTargets.size() + " packages in "
+                + deleteMillis + " ms, up to " + mMaxConcurrentDeletes + " at once");
+
+        if (mCallback != null) {
+            final IPackageDeleteObserver2 observer =
+                    IPackageDeleteObserver2.Stub.asInterface(mCallback);
+            try {
+                if (firstFailed == null) {
+                    observer.onPackageDeleted(null, PackageManager.DELETE_SUCCEEDED,
+                            "Deleted " + succeededCount + " packages");
+                } else {
+                    observer.onPackageDeleted(firstFailed.packageName, firstFailed.result,
+                            "Deleted " + succeededCount + " of " + mTargets.size()
+                            + " packages");
+                }
+            } catch (RemoteException ignored) {
+            }
+        }
+
+        final Intent result = new Intent();
+        result.putExtra(EXTRA_PACKAGE_NAMES, packageNames);
+        result.putExtra(EXTRA_DELETE_RESULTS, results);
+        setResult((firstFailed == null) ? RESULT_OK : RESULT_FIRST_USER, result);
+        if (!isFinishing() && !isDestroyed()) {
+            Toast.makeText(getBaseContext(), getString(R.string.batch_uninstall_done,
+                    succeededCount, mTargets.size()), Toast.LENGTH_LONG).show();
+            finish();
+        }
+    }
+
+    void dispatchAborted() {
+        if (mCallback != null) {
+            final IPackageDeleteObserver2 observer =
+                    IPackageDeleteObserver2.Stub.asInterface(mCallback);
+            try {
+                observer.onPackageDeleted(null, PackageManager.DELETE_FAILED_ABORTED,
+                        "Cancelled by user");
+            } catch (RemoteException ignored) {
+            }
+        }
+    }
+}
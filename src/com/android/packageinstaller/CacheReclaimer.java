@@ -0,0 +1,79 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.content.pm.IPackageDataObserver;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Makes room on internal storage for an install by asking the package manager to delete the
+ * cache files of apps, least recently used first, until enough space is free. Requires
+ * {@code CLEAR_APP_CACHE}.
+ */
+final class CacheReclaimer {
+    private static final String TAG = "CacheReclaimer";
+
+    interface Callback {
+        /**
+         * Called on the main thread once the package manager is done clearing caches.
+         *
+         * @param reclaimedBytes growth of the free space of internal storage
+         * @param durationMillis time it took to clear the caches
+         */
+        void onReclaimFinished(long reclaimedBytes, long durationMillis);
+    }
+
+    private CacheReclaimer() {}
+
+    /**
+     * Clears app caches until at least the specified number of bytes is free on internal storage.
+     * Nothing is cleared if that much space is already free.
+     */
+    static void reclaim(Context context, final long requiredFreeBytes, final Callback callback) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final File dataDir = Environment.getDataDirectory();
+        final long startMillis = SystemClock.elapsedRealtime();
+        final long freeBytesBefore = dataDir.getUsableSpace();
+        Log.i(TAG, "Freeing storage for " + requiredFreeBytes + " bytes; " + freeBytesBefore
+                + " bytes free");
+        context.getPackageManager().freeStorageAndNotify(requiredFreeBytes,
+                new IPackageDataObserver.Stub() {
+            @Override
+            public void onRemoveCompleted(String packageName, boolean succeeded) {
+                if (!succeeded) {
+                    Log.w(TAG, "Failed to free storage for " + requiredFreeBytes + " bytes");
+                }
+                final long reclaimedBytes =
+                        Math.max(0, dataDir.getUsableSpace() - freeBytesBefore);
+                final long durationMillis = SystemClock.elapsedRealtime() - startMillis;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReclaimFinished(reclaimedBytes, durationMillis);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -18,16 +18,18 @@
 package com.android.packageinstaller;
 
 import android.content.Context;
-import android.graphics.Canvas;
 import android.util.AttributeSet;
+import android.view.View;
 import android.widget.ScrollView;
 
 /**
  * It's a ScrollView that knows how to stay awake.
  */
-class CaffeinatedScrollView extends ScrollView {
+class CaffeinatedScrollView extends ScrollView implements FullScrollable {
     private Runnable mFullScrollAction;
     private int mBottomSlop;
+    /** Scroll offset past which the full scroll action runs; see updateFullScrollThreshold(). */
+    private int mFullScrollThreshold = Integer.MAX_VALUE;
 
     public CaffeinatedScrollView(Context context) {
         super(context);
@@ -45,31 +47,51 @@ class CaffeinatedScrollView extends ScrollView {
         return super.awakenScrollBars();
     }
 
+    @Override
+    public void pageDown() {
+        pageScroll(FOCUS_DOWN);
+    }
+
+    @Override
     public void setFullScrollAction(Runnable action) {
         mFullScrollAction = action;
         mBottomSlop = (int)(4 * getResources().getDisplayMetrics().density);
+        if (isLaidOut()) {
+            updateFullScrollThreshold();
+            checkFullScrollAction(getScrollY());
+        }
     }
 
     @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        checkFullScrollAction();
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        super.onLayout(changed, l, t, r, b);
+        if (mFullScrollAction != null) {
+            updateFullScrollThreshold();
+            checkFullScrollAction(getScrollY());
+        }
     }
 
     @Override
     protected void onScrollChanged(int l, int t, int oldl, int oldt) {
         super.onScrollChanged(l, t, oldl, oldt);
-        checkFullScrollAction();
+        checkFullScrollAction(t);
     }
 
-    private void checkFullScrollAction() {
-        if (mFullScrollAction != null) {
-            int daBottom = getChildAt(0).getBottom();
-            int screenBottom = getScrollY() + getHeight() - getPaddingBottom();
-            if ((daBottom - screenBottom) < mBottomSlop) {
-                mFullScrollAction.run();
-                mFullScrollAction = null;
-            }
+    /**
+     * Computes the scroll offset past which the bottom of the content is in view. Only depends on
+     * the layout, so it is computed once per layout pass rather than on every scroll.
+     */
+    private void updateFullScrollThreshold() {
+        final View child = getChildAt(0);
+        final int daBottom = (child != null) ? child.getBottom() : 0;
+        mFullScrollThreshold = daBottom - getHeight() + getPaddingBottom() - mBottomSlop;
+    }
+
+    private void checkFullScrollAction(int scrollY) {
+        if (mFullScrollAction != null && scrollY > mFullScrollThreshold) {
+            final Runnable action = mFullScrollAction;
+            mFullScrollAction = null;
+            action.run();
         }
     }
 }
@@ -0,0 +1,218 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import libcore.io.IoUtils;
+
+/**
+ * Tells installs which the package manager is bound to fail before the APK is copied, from the
+ * zip central directory and signature blocks of the APK:
+ * <ul>
+ * <li>packages whose native libraries are all for ABIs the device does not support;
+ * <li>updates older than the installed version of the package;
+ * <li>updates signed by other certificates than the installed version of the package.
+ * </ul>
+ * Packages requiring a newer platform are already rejected by {@link PackageLiteParser}.
+ *
+ * <p>Signature blocks are read but not verified, so a package passing these checks may still be
+ * failed by the package manager. The checks only fail packages it certainly fails.
+ */
+final class CompatibilityCheck {
+    private static final String TAG = "CompatibilityCheck";
+
+    private static final String LIB_PREFIX = "lib/";
+    private static final String LIB_SUFFIX = ".so";
+    private static final String META_INF_PREFIX = "META-INF/";
+    private static final String SIGNATURE_FILE_SUFFIX = ".SF";
+    private static final String[] SIGNATURE_BLOCK_SUFFIXES = { ".RSA", ".DSA", ".EC" };
+
+    /** Whether the APK has no native libraries or has some for an ABI the device supports. */
+    private final boolean mAbiSupported;
+    /**
+     * Digest of the certificates the APK claims to be signed with, or {@code null} if they are
+     * unknown. See {@link InstalledPackageIndex#getSigningDigest(byte[][])}.
+     */
+    private final byte[] mSigningDigest;
+
+    private CompatibilityCheck(boolean abiSupported, byte[] signingDigest) {
+        mAbiSupported = abiSupported;
+        mSigningDigest = signingDigest;
+    }
+
+    /**
+     * Inspects the specified APK from its shared mapping. If it cannot be mapped, every check is
+     * left to the package manager.
+     */
+    static CompatibilityCheck inspect(File apkFile) {
+        final MappedApk apk;
+        try {
+            apk = PackageUtil.getMappedApk(apkFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map " + apkFile, e);
+            return new CompatibilityCheck(true, null);
+        }
+        try {
+            return inspect(apk);
+        } finally {
+            apk.close();
+        }
+    }
+
+    static CompatibilityCheck inspect(MappedApk apk) {
+        final HashSet<String> abis = new HashSet<String>();
+        final ArrayList<MappedApk.Entry> signatureBlocks = new ArrayList<MappedApk.Entry>();
+        final HashSet<String> signatureFiles = new HashSet<String>();
+        for (MappedApk.Entry entry : apk.getEntries()) {
+            final String name = entry.name;
+            if (name.startsWith(LIB_PREFIX) && name.endsWith(LIB_SUFFIX)) {
+                // Only lib/<abi>/<library>.so is extracted.
+                final int abiEnd = name.indexOf('/', LIB_PREFIX.length());
+                if (abiEnd >= 0 && name.indexOf('/', abiEnd + 1) < 0) {
+                    abis.add(name.substring(LIB_PREFIX.length(), abiEnd));
+                }
+            } else if (isSignatureBlock(name)) {
+                signatureBlocks.add(entry);
+            } else if (isSignatureFile(name)) {
+                signatureFiles.add(getSignerName(name));
+            }
+        }
+        // Like the jar verifier, only count blocks signing a signature file; others are ignored.
+        for (int i = signatureBlocks.size() - 1; i >= 0; i--) {
+            if (!signatureFiles.contains(getSignerName(signatureBlocks.get(i).name))) {
+                signatureBlocks.remove(i);
+            }
+        }
+
+        boolean abiSupported = abis.isEmpty();
+        for (String abi : Build.SUPPORTED_ABIS) {
+            if (abis.contains(abi)) {
+                abiSupported = true;
+                break;
+            }
+        }
+        return new CompatibilityCheck(abiSupported, getSigningDigest(apk, signatureBlocks));
+    }
+
+    private static boolean isSignatureBlock(String name) {
+        if (!isInMetaInf(name)) {
+            return false;
+        }
+        final String upperName = name.toUpperCase(Locale.US);
+        for (String suffix : SIGNATURE_BLOCK_SUFFIXES) {
+            if (upperName.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSignatureFile(String name) {
+        return isInMetaInf(name) && name.toUpperCase(Locale.US).endsWith(SIGNATURE_FILE_SUFFIX);
+    }
+
+    private static boolean isInMetaInf(String name) {
+        return name.startsWith(META_INF_PREFIX)
+                && name.indexOf('/', META_INF_PREFIX.length()) < 0;
+    }
+
+    /**
+     * Returns the name of the signer of a signature file or block, e.g. {@code META-INF/CERT}
+     * for {@code META-INF/CERT.RSA}, upper-cased as the jar verifier matches them.
+     */
+    private static String getSignerName(String name) {
+        final int dot = name.lastIndexOf('.');
+        return name.substring(0, dot).toUpperCase(Locale.US);
+    }
+
+    /**
+     * Returns the digest of the certificates of the signers of the APK, or {@code null} if they
+     * cannot be told apart from the other certificates of their signature blocks.
+     */
+    private static byte[] getSigningDigest(MappedApk apk, List<MappedApk.Entry> signatureBlocks) {
+        if (signatureBlocks.isEmpty()) {
+            return null;
+        }
+        final byte[][] certificates = new byte[signatureBlocks.size()][];
+        try {
+            final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            for (int i = 0; i < certificates.length; i++) {
+                InputStream in = null;
+                try {
+                    in = apk.openEntry(signatureBlocks.get(i));
+                    final Collection<? extends Certificate> chain =
+                            factory.generateCertificates(in);
+                    if (chain.size() != 1) {
+                        // The signer's certificate comes with its issuers.
+                        return null;
+                    }
+                    certificates[i] = chain.iterator().next().getEncoded();
+                } finally {
+                    IoUtils.closeQuietly(in);
+                }
+            }
+        } catch (CertificateException | IOException e) {
+            Log.w(TAG, "Failed to read the signers of " + apk.getFile(), e);
+            return null;
+        }
+        return InstalledPackageIndex.getSigningDigest(certificates);
+    }
+
+    /**
+     * Returns {@link PackageManager#INSTALL_SUCCEEDED} if the package may be installed as far as
+     * these checks can tell, or the error the package manager would fail its install with:
+     * {@link PackageManager#INSTALL_FAILED_CPU_ABI_INCOMPATIBLE},
+     * {@link PackageManager#INSTALL_FAILED_VERSION_DOWNGRADE}, or
+     * {@link PackageManager#INSTALL_FAILED_UPDATE_INCOMPATIBLE} if the signers differ from those of
+     * the installed package.
+     *
+     * @param installed the installed package the package replaces, or {@code null}
+     */
+    int check(PackageInfo pkgInfo, InstalledPackageIndex.PackageRecord installed) {
+        if (!mAbiSupported) {
+            return PackageManager.INSTALL_FAILED_CPU_ABI_INCOMPATIBLE;
+        }
+        if (installed == null) {
+            return PackageManager.INSTALL_SUCCEEDED;
+        }
+        if (pkgInfo.versionCode < installed.versionCode) {
+            return PackageManager.INSTALL_FAILED_VERSION_DOWNGRADE;
+        }
+        if (mSigningDigest != null && installed.signingDigest != null
+                && !Arrays.equals(mSigningDigest, installed.signingDigest)) {
+            return PackageManager.INSTALL_FAILED_UPDATE_INCOMPATIBLE;
+        }
+        return PackageManager.INSTALL_SUCCEEDED;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import libcore.io.IoUtils;
+
+/**
+ * Persistent cache of the digests of APK contents logged by {@link InstallFlowAnalytics}, so that
+ * installing the same APK again, for example for another user or from shared storage in a
+ * provisioning lab, does not read the whole file again.
+ *
+ * <p>Digests are keyed by the identity of the file (see {@link PackageParseCache.Key}) and the
+ * digest mode. The cache keeps at most {@link #MAX_ENTRIES} digests in the app's private files
+ * directory; the least recently used ones are dropped whenever the file is rewritten.
+ */
+final class DigestCache {
+    private static final String TAG = "DigestCache";
+
+    private static final String FILE_NAME = "digest_cache";
+    private static final int FILE_VERSION = 1;
+
+    /** Maximum number of digests kept. */
+    private static final int MAX_ENTRIES = 128;
+
+    /** Longest digest accepted when reading the file, as a sanity check. */
+    private static final int MAX_DIGEST_LENGTH = 64;
+
+    private static DigestCache sInstance;
+
+    private static final class Key {
+        final PackageParseCache.Key file;
+        final byte digestMode;
+
+        Key(PackageParseCache.Key file, byte digestMode) {
+            this.file = file;
+            this.digestMode = digestMode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return digestMode == other.digestMode && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * file.hashCode() + digestMode;
+        }
+    }
+
+    private final AtomicFile mFile;
+
+    /** Digests in least recently used order. Loaded lazily, as this is only used off the UI. */
+    private LinkedHashMap<Key, byte[]> mDigests;
+
+    private int mHits;
+    private int mMisses;
+    private long mBytesNotRead;
+
+    private DigestCache(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    static synchronized DigestCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DigestCache(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached digest of the specified file in the specified mode or {@code null} if
+     * there is none.
+     *
+     * @param countLookup whether to count the lookup as a hit or miss. An install flow counts
+     *     only its first lookup, as later ones find the digest its first one computed.
+     */
+    synchronized byte[] get(PackageParseCache.Key file, byte digestMode, boolean countLookup) {
+        final byte[] digest = getDigests().get(new Key(file, digestMode));
+        if (digest == null) {
+            if (countLookup) {
+                mMisses++;
+            }
+            return null;
+        }
+        if (countLookup) {
+            mHits++;
+            mBytesNotRead += file.size;
+        }
+        return digest.clone();
+    }
+
+    synchronized void put(PackageParseCache.Key file, byte digestMode, byte[] digest) {
+        getDigests().put(new Key(file, digestMode), digest.clone());
+        writeLocked();
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the total size of the files whose digests were served from this cache instead of
+     * being computed.
+     */
+    synchronized long getBytesNotRead() {
+        return mBytesNotRead;
+    }
+
+    private LinkedHashMap<Key, byte[]> getDigests() {
+        if (mDigests == null) {
+            mDigests = new LinkedHashMap<Key, byte[]>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+            readLocked();
+        }
+        return mDigests;
+    }
+
+    private void readLocked() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final long mtime = in.readLong();
+                final long inode = in.readLong();
+                final byte digestMode = in.readByte();
+                final int digestLength = in.readUnsignedByte();
+                if (digestLength > MAX_DIGEST_LENGTH) {
+                    throw new IOException("Bad digest length " + digestLength);
+                }
+                final byte[] digest = new byte[digestLength];
+                in.readFully(digest);
+                // Entries are stored from least to most recently used.
+                mDigests.put(new Key(new PackageParseCache.Key(path, size, mtime, inode),
+                        digestMode), digest);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable " + mFile.getBaseFile(), e);
+            mDigests.clear();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeLocked() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mDigests.size());
+            for (Map.Entry<Key, byte[]> entry : mDigests.entrySet()) {
+                final PackageParseCache.Key file = entry.getKey().file;
+                out.writeUTF(file.path);
+                out.writeLong(file.size);
+                out.writeLong(file.mtime);
+                out.writeLong(file.inode);
+                out.writeByte(entry.getKey().digestMode);
+                out.writeByte(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.WindowManager;
+
+import java.util.Arrays;
+
+/**
+ * Samples the frame times of the main thread while a screen is shown, so that changes to the
+ * rendering of the screen can be measured.
+ *
+ * <p>A frame time is the time between the starts of two consecutive frames as seen by the
+ * {@link Choreographer}. A frame that is late by at least half a refresh period is janky. Only
+ * the first {@link #MAX_SAMPLES} frames are sampled, as waking up for every frame of a screen
+ * left open would waste power.
+ *
+ * <p>Sampling is off unless enabled with {@code adb shell setprop log.tag.FrameTimeSampler DEBUG},
+ * as it wakes up the main thread for every frame.
+ */
+final class FrameTimeSampler implements Choreographer.FrameCallback {
+    private static final String TAG = "FrameTimeSampler";
+
+    /** Most frames sampled, about half a minute at 60 fps. */
+    private static final int MAX_SAMPLES = 1800;
+
+    private final long mJankThresholdNanos;
+    private final int[] mFrameTimesMicros = new int[MAX_SAMPLES];
+    private int mFrameCount;
+    private int mJankyFrameCount;
+    /** Start of the last frame seen, or {@code 0} if none has been seen since starting. */
+    private long mLastFrameTimeNanos;
+    private boolean mRunning;
+
+    FrameTimeSampler(Context context) {
+        final Display display = ((WindowManager) context.getSystemService(
+                Context.WINDOW_SERVICE)).getDefaultDisplay();
+        final float refreshRate = display.getRefreshRate();
+        final long periodNanos = (long) (1000000000 / ((refreshRate > 0) ? refreshRate : 60));
+        mJankThresholdNanos = periodNanos * 3 / 2;
+    }
+
+    /**
+     * Returns whether frame times should be sampled at all.
+     */
+    static boolean isEnabled() {
+        return Log.isLoggable(TAG, Log.DEBUG);
+    }
+
+    /**
+     * Starts sampling, unless the sampler is full. Sampling again after {@link #stop()} does not
+     * count the time spent stopped as a frame. Must be called on the main thread.
+     */
+    void start() {
+        if (mRunning || mFrameCount >= MAX_SAMPLES) {
+            return;
+        }
+        mRunning = true;
+        mLastFrameTimeNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stops sampling. Must be called on the main thread.
+     */
+    void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mLastFrameTimeNanos != 0) {
+            final long frameTimeMicros = (frameTimeNanos - mLastFrameTimeNanos) / 1000;
+            mFrameTimesMicros[mFrameCount++] = (int) Math.min(frameTimeMicros, Integer.MAX_VALUE);
+            if (frameTimeNanos - mLastFrameTimeNanos >= mJankThresholdNanos) {
+                mJankyFrameCount++;
+            }
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        if (mFrameCount < MAX_SAMPLES) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            mRunning = false;
+        }
+    }
+
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    int getJankyFrameCount() {
+        return mJankyFrameCount;
+    }
+
+    private int[] getFrameTimesMicros() {
+        return Arrays.copyOf(mFrameTimesMicros, mFrameCount);
+    }
+
+    /**
+     * Returns the specified percentile of the frame times sampled so far, in milliseconds, or
+     * {@code 0} if no frame has been sampled.
+     *
+     * @param percentile between 0 and 100; 100 is the longest frame time
+     */
+    int getFrameTimePercentileMillis(int percentile) {
+        if (mFrameCount == 0) {
+            return 0;
+        }
+        final int[] frameTimes = getFrameTimesMicros();
+        Arrays.sort(frameTimes);
+        return frameTimes[(frameTimes.length - 1) * percentile / 100] / 1000;
+    }
+}
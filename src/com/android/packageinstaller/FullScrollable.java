@@ -0,0 +1,39 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+/**
+ * A scrolling view that can tell when it has been scrolled to the bottom, so that the install
+ * button can wait for the user to have seen everything the view shows.
+ */
+interface FullScrollable {
+    /**
+     * Sets the action to run once, the first time the view is scrolled to its bottom, or as soon
+     * as it is laid out if everything fits.
+     */
+    void setFullScrollAction(Runnable action);
+
+    /**
+     * Scrolls down by a page.
+     */
+    void pageDown();
+
+    /**
+     * Makes the scroll bars visible for a moment.
+     */
+    boolean awakenScrollBars();
+}
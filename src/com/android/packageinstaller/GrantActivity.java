@@ -18,34 +18,96 @@ package com.android.packageinstaller;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.PermissionInfo;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.view.ViewPager;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
-import android.view.ViewGroup;
 import android.widget.AppSecurityPermissions;
 import android.widget.Button;
+import android.widget.ProgressBar;
 import android.widget.TabHost;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /*
  * The activity which is responsible for asking the user to grant permissions
  * to applications.
  */
 public class GrantActivity extends Activity implements OnClickListener {
+    private static final String TAG = "GrantActivity";
+
     private Button mOk;
     private Button mCancel;
     private PackageManager mPm;
     private String mRequestingPackage;
     private String[] requested_permissions;
+    private View mInstallConfirm;
+    private LoadGrantTask mLoadTask;
+    private GrantTask mGrantTask;
+
+    /**
+     * Everything the dialog needs about the grant request. Produced by {@link LoadGrantTask} on a
+     * worker thread and bound on the main thread.
+     */
+    private static class LoadResult {
+        PermissionGrantDiff diff;
+        AppSecurityPermissions perms;
+        PermissionListAdapter.Rows permissionRows;
+        PackageUtil.AppSnippet snippet;
+    }
+
+    /**
+     * Fetches the requesting package and the metadata of the requested permissions off the main
+     * thread, where each of them used to be a binder call.
+     */
+    private class LoadGrantTask extends AsyncTask<Void, Void, LoadResult> {
+        @Override
+        protected LoadResult doInBackground(Void... params) {
+            return loadGrant();
+        }
+
+        @Override
+        protected void onPostExecute(LoadResult result) {
+            mLoadTask = null;
+            if (!isFinishing() && !isDestroyed()) {
+                onGrantLoaded(result);
+            }
+        }
+    }
+
+    /**
+     * Grants the permissions of the request off the main thread, then finishes with
+     * {@link #RESULT_OK} as before, listing the permissions actually granted in
+     * {@link PackageManager#EXTRA_REQUEST_PERMISSION_PERMISSION_LIST}, or with
+     * {@link #RESULT_CANCELED} if none could be.
+     */
+    private class GrantTask extends AsyncTask<Void, Void, String[]> {
+        @Override
+        protected String[] doInBackground(Void... params) {
+            return grantAll();
+        }
+
+        @Override
+        protected void onPostExecute(String[] granted) {
+            mGrantTask = null;
+            if (granted.length > 0) {
+                final Intent data = new Intent();
+                data.putExtra(PackageManager.EXTRA_REQUEST_PERMISSION_PERMISSION_LIST, granted);
+                setResult(RESULT_OK, data);
+            } else {
+                setResult(RESULT_CANCELED);
+            }
+            finish();
+        }
+    }
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -53,7 +115,60 @@ public class GrantActivity extends Activity implements OnClickListener {
         mPm = getPackageManager();
         mRequestingPackage = this.getCallingPackage();
 
-        requested_permissions = getRequestedPermissions();
+        //set view; the app snippet is filled in once the request has been loaded
+        setContentView(R.layout.install_start);
+        mInstallConfirm = findViewById(R.id.install_confirm_panel);
+        mInstallConfirm.setVisibility(View.INVISIBLE);
+        ((ProgressBar) findViewById(R.id.progress_bar)).setIndeterminate(true);
+
+        mLoadTask = new LoadGrantTask();
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
+        if (mGrantTask != null) {
+            // Grants already made stand; only the result is dropped.
+            mGrantTask.cancel(false);
+            mGrantTask = null;
+        }
+    }
+
+    /**
+     * Runs on a worker thread and must not modify any state of the activity.
+     */
+    private LoadResult loadGrant() {
+        final LoadResult result = new LoadResult();
+        // The package is fetched once, for both filtering the request and showing the result.
+        final PackageInfo pkgInfo;
+        try {
+            pkgInfo = mPm.getPackageInfo(mRequestingPackage, PackageManager.GET_PERMISSIONS);
+        } catch (NameNotFoundException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+        final PermissionInfoCache permissions = PermissionInfoCache.getInstance(this);
+        result.diff = PermissionGrantDiff.compute(permissions, pkgInfo,
+                getIntent().getStringArrayExtra(
+                        PackageManager.EXTRA_REQUEST_PERMISSION_PERMISSION_LIST));
+        if (result.diff.grantable.length == 0) {
+            return result;
+        }
+        result.perms = new AppSecurityPermissions(this, result.diff.updatedPkgInfo);
+        result.permissionRows = PermissionListAdapter.load(this, permissions,
+                result.diff.updatedPkgInfo, null);
+        result.snippet = new PackageUtil.AppSnippet(
+                mPm.getApplicationLabel(pkgInfo.applicationInfo),
+                mPm.getApplicationIcon(pkgInfo.applicationInfo));
+        return result;
+    }
+
+    private void onGrantLoaded(LoadResult result) {
+        requested_permissions = result.diff.grantable;
         if (requested_permissions.length == 0) {
             // The grant request was empty. Return success
             setResult(RESULT_OK);
@@ -61,8 +176,7 @@ public class GrantActivity extends Activity implements OnClickListener {
             return;
         }
 
-        PackageInfo pkgInfo = getUpdatedPackageInfo();
-        AppSecurityPermissions perms = new AppSecurityPermissions(this, pkgInfo);
+        AppSecurityPermissions perms = result.perms;
         if (perms.getPermissionCount(AppSecurityPermissions.WHICH_NEW) == 0) {
             // The updated permissions dialog said there are no new permissions.
             // This should never occur if requested_permissions.length > 0,
@@ -72,11 +186,10 @@ public class GrantActivity extends Activity implements OnClickListener {
             return;
         }
 
-        setContentView(R.layout.install_start);
+        ((ProgressBar) findViewById(R.id.progress_bar)).setIndeterminate(false);
+        mInstallConfirm.setVisibility(View.VISIBLE);
         ((TextView)findViewById(R.id.install_confirm_question)).setText(R.string.grant_confirm_question);
-        PackageUtil.AppSnippet as = new PackageUtil.AppSnippet(mPm.getApplicationLabel(pkgInfo.applicationInfo),
-                mPm.getApplicationIcon(pkgInfo.applicationInfo));
-        PackageUtil.initSnippetForNewApp(this, as, R.id.app_snippet);
+        PackageUtil.initSnippetForNewApp(this, result.snippet, R.id.app_snippet);
         mOk = (Button)findViewById(R.id.ok_button);
         mOk.setText(R.string.ok);
         mCancel = (Button)findViewById(R.id.cancel_button);
@@ -89,141 +202,81 @@ public class GrantActivity extends Activity implements OnClickListener {
         TabsAdapter adapter = new TabsAdapter(this, tabHost, viewPager);
 
         View newTab = perms.getPermissionsView(AppSecurityPermissions.WHICH_NEW);
-        View allTab = getPermissionList(perms);
-
         adapter.addTab(tabHost.newTabSpec("new").setIndicator(
                 getText(R.string.newPerms)), newTab);
+        // The list of all permissions is only inflated if its tab is opened.
+        final PermissionListAdapter.Rows permissionRows = result.permissionRows;
         adapter.addTab(tabHost.newTabSpec("all").setIndicator(
-                getText(R.string.allPerms)), allTab);
-    }
-
-    /**
-     * Returns a PackageInfo object representing the results of adding all the permissions
-     * in {@code requested_permissions} to {@code mRequestingPackage}. This is the package
-     * permissions the user will have if they accept the grant request.
-     */
-    private PackageInfo getUpdatedPackageInfo() {
-        try {
-            PackageInfo pkgInfo = mPm.getPackageInfo(mRequestingPackage, PackageManager.GET_PERMISSIONS);
-            for (int i = 0; i < pkgInfo.requestedPermissions.length; i++) {
-                for (String requested_permission : requested_permissions) {
-                    if (requested_permission.equals(pkgInfo.requestedPermissions[i])) {
-                        pkgInfo.requestedPermissionsFlags[i] |= PackageInfo.REQUESTED_PERMISSION_GRANTED;
-                    }
-                }
+                getText(R.string.allPerms)), new TabsAdapter.PageFactory() {
+            @Override
+            public View createPage() {
+                return getPermissionList(permissionRows);
             }
-
-            return pkgInfo;
-        } catch (NameNotFoundException e) {
-            throw new RuntimeException(e); // will never occur
-        }
+        });
     }
 
-    private View getPermissionList(AppSecurityPermissions perms) {
+    private View getPermissionList(PermissionListAdapter.Rows permissionRows) {
         LayoutInflater inflater = (LayoutInflater)getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View root = inflater.inflate(R.layout.permissions_list, null);
-        View personalPermissions = perms.getPermissionsView(AppSecurityPermissions.WHICH_PERSONAL);
-        View devicePermissions = perms.getPermissionsView(AppSecurityPermissions.WHICH_DEVICE);
-
-        ((ViewGroup)root.findViewById(R.id.privacylist)).addView(personalPermissions);
-        ((ViewGroup)root.findViewById(R.id.devicelist)).addView(devicePermissions);
-
-        return root;
+        PermissionListView list =
+                (PermissionListView)inflater.inflate(R.layout.permissions_list, null);
+        list.setAdapter(new PermissionListAdapter(this, permissionRows));
+        return list;
     }
 
-    /**
-     * Return an array of permissions requested by the caller, filtered to exclude
-     * irrelevant or otherwise malicious permission requests from untrusted callers.
-     */
-    private String[] getRequestedPermissions() {
-        String[] permissions = getIntent()
-                .getStringArrayExtra(PackageManager.EXTRA_REQUEST_PERMISSION_PERMISSION_LIST);
-        if (permissions == null) {
-            return new String[0];
+    @Override
+    public void onClick(View v) {
+        if (v == mOk) {
+            if (mGrantTask == null) {
+                mOk.setEnabled(false);
+                mCancel.setEnabled(false);
+                mGrantTask = new GrantTask();
+                mGrantTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+            return;
         }
-        permissions = keepNormalDangerousPermissions(permissions);
-        permissions = keepRequestingPackagePermissions(permissions);
-        return permissions;
-
+        if (v == mCancel) {
+            setResult(RESULT_CANCELED);
+        }
+        finish();
     }
 
     /**
-     * Remove any permissions in {@code permissions} which are not present
-     * in {@code mRequestingPackage} and return the result. We also filter out
-     * permissions which are required by {@code mRequestingPackage}, and permissions
-     * which have already been granted to {@code mRequestingPackage}, as those permissions
-     * are useless to change.
+     * Grants the permissions of the request one by one, as the package manager has no way of
+     * granting several at once, and each grant is persisted on its own. The request is checked
+     * again first against the current state of the package, which is what the package manager
+     * checks each grant against, so that nothing is granted if the package changed since the
+     * dialog was shown. A grant can still fail, e.g. if the package is updated meanwhile; the
+     * permissions granted before it are kept, as revoking a permission kills the package's
+     * processes. Runs on a worker thread.
+     *
+     * @return the permissions granted, in the order of the request
      */
-    private String[] keepRequestingPackagePermissions(String[] permissions) {
-        List<String> result = new ArrayList<String>();
+    private String[] grantAll() {
+        final String[] permissions = requested_permissions;
         try {
-            PackageInfo pkgInfo = mPm.getPackageInfo(mRequestingPackage, PackageManager.GET_PERMISSIONS);
-            if (pkgInfo.requestedPermissions == null) {
+            final PackageInfo pkgInfo = mPm.getPackageInfo(mRequestingPackage,
+                    PackageManager.GET_PERMISSIONS);
+            final PermissionGrantDiff diff = PermissionGrantDiff.compute(
+                    PermissionInfoCache.getInstance(this), pkgInfo, permissions);
+            if (!Arrays.equals(diff.grantable, permissions)) {
+                Log.w(TAG, "Permissions of " + mRequestingPackage + " changed; not granting");
                 return new String[0];
             }
-            for (int i = 0; i < pkgInfo.requestedPermissions.length; i++) {
-                for (String permission : permissions) {
-                    final boolean isRequired =
-                            ((pkgInfo.requestedPermissionsFlags[i]
-                                    & PackageInfo.REQUESTED_PERMISSION_REQUIRED) != 0);
-                    final boolean isGranted =
-                            ((pkgInfo.requestedPermissionsFlags[i]
-                                    & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0);
-
-                    /*
-                     * We ignore required permissions, and permissions which have already
-                     * been granted, as it's useless to grant those permissions.
-                     */
-                    if (permission.equals(pkgInfo.requestedPermissions[i])
-                            && !isRequired && !isGranted) {
-                        result.add(permission);
-                        break;
-                    }
-                }
-            }
         } catch (NameNotFoundException e) {
-            throw new RuntimeException(e); // should never happen
-        }
-        return result.toArray(new String[result.size()]);
-    }
-
-    /**
-     * Filter the permissions in {@code permissions}, keeping only the NORMAL or DANGEROUS
-     * permissions.
-     *
-     * @param permissions the permissions to filter
-     * @return A subset of {@code permissions} with only the
-     *     NORMAL or DANGEROUS permissions kept
-     */
-    private String[] keepNormalDangerousPermissions(String[] permissions) {
-        List<String> result = new ArrayList<String>();
-        for (String permission : permissions) {
-            try {
-                PermissionInfo pInfo = mPm.getPermissionInfo(permission, 0);
-                final int base = pInfo.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE;
-                if ((base != PermissionInfo.PROTECTION_NORMAL)
-                        && (base != PermissionInfo.PROTECTION_DANGEROUS)) {
-                    continue;
-                }
-                result.add(permission);
-            } catch (NameNotFoundException e) {
-                // ignore
-            }
+            Log.w(TAG, mRequestingPackage + " is gone; not granting");
+            return new String[0];
         }
-        return result.toArray(new String[result.size()]);
-    }
 
-    @Override
-    public void onClick(View v) {
-        if (v == mOk) {
-            for (String permission : requested_permissions) {
-                mPm.grantPermission(mRequestingPackage, permission);
+        int granted = 0;
+        try {
+            for (; granted < permissions.length; granted++) {
+                mPm.grantPermission(mRequestingPackage, permissions[granted]);
             }
-            setResult(RESULT_OK);
+        } catch (SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to grant " + permissions[granted] + " to " + mRequestingPackage
+                    + "; granted only " + Arrays.toString(Arrays.copyOf(permissions, granted)),
+                    e);
         }
-        if (v == mCancel) {
-            setResult(RESULT_CANCELED);
-        }
-        finish();
+        return Arrays.copyOf(permissions, granted);
     }
 }
@@ -19,23 +19,22 @@ package com.android.packageinstaller;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.IPackageInstallObserver;
-import android.content.pm.ManifestDigest;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
-import android.content.pm.VerificationParams;
 import android.graphics.drawable.LevelListDrawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
-import android.provider.Settings;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -43,8 +42,11 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.util.List;
 
+import libcore.io.IoUtils;
+
 /**
  * This activity corresponds to a download progress screen that is displayed 
  * when the user tries
@@ -58,6 +60,9 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
     private boolean localLOGV = false;
     static final String EXTRA_MANIFEST_DIGEST =
             "com.android.packageinstaller.extras.manifest_digest";
+    /** Token of a {@link SessionInstaller} published after staging the package, if any. */
+    static final String EXTRA_STAGED_INSTALL_TOKEN =
+            "com.android.packageinstaller.extras.staged_install_token";
     static final String EXTRA_INSTALL_FLOW_ANALYTICS =
             "com.android.packageinstaller.extras.install_flow_analytics";
     private ApplicationInfo mAppInfo;
@@ -74,15 +79,79 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
     private static final int DLG_OUT_OF_SPACE = 1;
     private CharSequence mLabel;
 
-    private static final int APP_INSTALL_AUTO = 0;
-    private static final int APP_INSTALL_DEVICE = 1;
-    private static final int APP_INSTALL_SDCARD = 2;
+    private static final String STATE_INSTALL_REQUESTED = "installRequested";
+    private static final String STATE_JOB_ID = "jobId";
+    private static final String STATE_JOB_PID = "jobPid";
+    private static final String STATE_INSTALL_STATUS = "installStatus";
+
+    // Service performing the install, once bound
+    private InstallService mInstallService;
+    // Whether initView() has asked for the install to start
+    private boolean mInstallRequested;
+    // ID of the install job in mInstallService, or 0 if it has not been started yet. Saved with
+    // the instance state, so that a recreated activity attaches to the job rather than starting
+    // the install again.
+    private int mJobId;
+    // Whether the job started before this activity was recreated ran in a process which is gone
+    private boolean mJobLost;
+    // Result of the install once reported, or null; shown again if the activity is recreated
+    private Integer mInstallStatus;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mInstallService = ((InstallService.LocalBinder) service).getService();
+            if (mInstallStatus != null) {
+                return;
+            }
+            if (mJobId != 0) {
+                if (!mInstallService.attach(mJobId, mInstallListener)) {
+                    onJobLost();
+                }
+            } else if (mJobLost) {
+                onJobLost();
+            } else if (mInstallRequested) {
+                startInstall();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mInstallService = null;
+        }
+    };
+
+    private final InstallService.Listener mInstallListener = new InstallService.Listener() {
+        @Override
+        public void onInstallProgress(float progress) {
+            setInstallProgress(progress);
+        }
+
+        @Override
+        public void onInstallFinished(int legacyStatus) {
+            Message msg = mHandler.obtainMessage(INSTALL_COMPLETE);
+            msg.arg1 = legacyStatus;
+            mHandler.sendMessage(msg);
+        }
+    };
+
+    // Latest install progress, drawn at most once per frame by mProgressUpdater
+    private float mPendingProgress;
+    private boolean mProgressUpdateScheduled;
+    private final Runnable mProgressUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mProgressUpdateScheduled = false;
+            mProgressBar.setIndeterminate(false);
+            mProgressBar.setProgress((int) (mPendingProgress * mProgressBar.getMax()));
+        }
+    };
 
     private Handler mHandler = new Handler() {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case INSTALL_COMPLETE:
-                    mInstallFlowAnalytics.setFlowFinishedWithPackageManagerResult(msg.arg1);
+                    mInstallStatus = msg.arg1;
                     if (getIntent().getBooleanExtra(Intent.EXTRA_RETURN_RESULT, false)) {
                         Intent result = new Intent();
                         result.putExtra(Intent.EXTRA_INSTALL_RESULT, msg.arg1);
@@ -154,18 +223,7 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
     
     private int getExplanationFromErrorCode(int errCode) {
         Log.d(TAG, "Installation error code: " + errCode);
-        switch (errCode) {
-            case PackageManager.INSTALL_FAILED_INVALID_APK:
-                return R.string.install_failed_invalid_apk;
-            case PackageManager.INSTALL_PARSE_FAILED_INCONSISTENT_CERTIFICATES:
-                return R.string.install_failed_inconsistent_certificates;
-            case PackageManager.INSTALL_FAILED_OLDER_SDK:
-                return R.string.install_failed_older_sdk;
-            case PackageManager.INSTALL_FAILED_CPU_ABI_INCOMPATIBLE:
-                return R.string.install_failed_cpu_abi_incompatible;
-            default:
-                return -1;
-        }
+        return PackageUtil.getInstallFailureExplanation(errCode);
     }
 
     @Override
@@ -176,53 +234,32 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
         mInstallFlowAnalytics = intent.getParcelableExtra(EXTRA_INSTALL_FLOW_ANALYTICS);
         mInstallFlowAnalytics.setContext(this);
         mPackageURI = intent.getData();
+        if (icicle != null) {
+            mInstallRequested = icicle.getBoolean(STATE_INSTALL_REQUESTED);
+            final int jobId = icicle.getInt(STATE_JOB_ID);
+            // Job IDs are only meaningful to the process which handed them out.
+            if (icicle.getInt(STATE_JOB_PID) == android.os.Process.myPid()) {
+                mJobId = jobId;
+            } else {
+                mJobLost = jobId != 0;
+            }
+            if (icicle.containsKey(STATE_INSTALL_STATUS)) {
+                mInstallStatus = icicle.getInt(STATE_INSTALL_STATUS);
+            }
+        }
 
         final String scheme = mPackageURI.getScheme();
-        if (scheme != null && !"file".equals(scheme) && !"package".equals(scheme)) {
+        if (scheme != null && !"file".equals(scheme) && !"package".equals(scheme)
+                && !"content".equals(scheme)) {
             mInstallFlowAnalytics.setFlowFinished(
                     InstallFlowAnalytics.RESULT_FAILED_UNSUPPORTED_SCHEME);
             throw new IllegalArgumentException("unexpected scheme " + scheme);
         }
-        showAppInstallLocationSettingDlg();
-    }
-
-    private void showAppInstallLocationSettingDlg() {
-        final int selectedLocation = Settings.Global.getInt(getContentResolver(),
-                Settings.Global.DEFAULT_INSTALL_LOCATION, APP_INSTALL_AUTO);
-        final String[] items =getResources().getStringArray(R.array.app_install_location_entries);
-        new AlertDialog.Builder(this).setTitle(R.string.app_install_location_title)
-                .setCancelable(false)
-                .setSingleChoiceItems(items, selectedLocation,
-                        new DialogInterface.OnClickListener() {
-                            public void onClick(DialogInterface dialog, int item) {
-                                if(APP_INSTALL_DEVICE == item) {
-                                    Settings.Global.putInt(getContentResolver(),
-                                            Settings.Global.DEFAULT_INSTALL_LOCATION,
-                                                    APP_INSTALL_DEVICE);
-                                } else if (APP_INSTALL_SDCARD == item) {
-                                    Settings.Global.putInt(getContentResolver(),
-                                            Settings.Global.DEFAULT_INSTALL_LOCATION,
-                                                    APP_INSTALL_SDCARD);
-                                } else if (APP_INSTALL_AUTO== item) {
-                                    Settings.Global.putInt(getContentResolver(),
-                                            Settings.Global.DEFAULT_INSTALL_LOCATION,
-                                                    APP_INSTALL_AUTO);
-                                } else {
-                                // Should not happen, default to prompt.
-                                    Settings.Global.putInt(getContentResolver(),
-                                            Settings.Global.DEFAULT_INSTALL_LOCATION,
-                                                    APP_INSTALL_AUTO);
-                                }
-                                dialog.cancel();
-                                mHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        initView();
-                                    }
-                                });
-                            }
-                        }
-                ).show();
+        bindService(new Intent(this, InstallService.class), mServiceConnection,
+                Context.BIND_AUTO_CREATE);
+        // Where the package goes was decided along with the review of the install; see
+        // InstallLocationPolicy.
+        initView();
     }
 
     @Override
@@ -258,34 +295,35 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
         showDialog(id);
     }
 
-    class PackageInstallObserver extends IPackageInstallObserver.Stub {
-        public void packageInstalled(String packageName, int returnCode) {
-            Message msg = mHandler.obtainMessage(INSTALL_COMPLETE);
-            msg.arg1 = returnCode;
-            mHandler.sendMessage(msg);
-        }
-    }
-
     public void initView() {
         setContentView(R.layout.op_progress);
-        int installFlags = 0;
         PackageManager pm = getPackageManager();
-        try {
-            PackageInfo pi = pm.getPackageInfo(mAppInfo.packageName, 
-                    PackageManager.GET_UNINSTALLED_PACKAGES);
-            if(pi != null) {
-                installFlags |= PackageManager.INSTALL_REPLACE_EXISTING;
-            }
-        } catch (NameNotFoundException e) {
-        }
-        if((installFlags & PackageManager.INSTALL_REPLACE_EXISTING )!= 0) {
-            Log.w(TAG, "Replacing package:" + mAppInfo.packageName);
-        }
 
         final PackageUtil.AppSnippet as;
+        ParcelFileDescriptor packageFd = null;
         if ("package".equals(mPackageURI.getScheme())) {
             as = new PackageUtil.AppSnippet(pm.getApplicationLabel(mAppInfo),
                     pm.getApplicationIcon(mAppInfo));
+        } else if ("content".equals(mPackageURI.getScheme())) {
+            try {
+                packageFd = getContentResolver().openFileDescriptor(mPackageURI, "r");
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "Failed to open " + mPackageURI, e);
+            }
+            if (packageFd != null) {
+                as = PackageUtil.getAppSnippet(this, mAppInfo,
+                        PackageUtil.getFileForDescriptor(packageFd));
+                IoUtils.closeQuietly(packageFd);
+            } else {
+                as = new PackageUtil.AppSnippet(mAppInfo.packageName,
+                        pm.getDefaultActivityIcon());
+            }
+            // The provider may serve other bytes by now; keep the label which was reviewed.
+            final CharSequence reviewedLabel =
+                    getIntent().getCharSequenceExtra(InstallService.EXTRA_LABEL);
+            if (reviewedLabel != null) {
+                as.label = reviewedLabel;
+            }
         } else {
             final File sourceFile = new File(mPackageURI.getPath());
             as = PackageUtil.getAppSnippet(this, mAppInfo, sourceFile);
@@ -303,35 +341,72 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
         mLaunchButton = (Button)findViewById(R.id.launch_button);
         mOkPanel.setVisibility(View.INVISIBLE);
 
-        String installerPackageName = getIntent().getStringExtra(
-                Intent.EXTRA_INSTALLER_PACKAGE_NAME);
-        Uri originatingURI = getIntent().getParcelableExtra(Intent.EXTRA_ORIGINATING_URI);
-        Uri referrer = getIntent().getParcelableExtra(Intent.EXTRA_REFERRER);
-        int originatingUid = getIntent().getIntExtra(Intent.EXTRA_ORIGINATING_UID,
-                VerificationParams.NO_UID);
-        ManifestDigest manifestDigest = getIntent().getParcelableExtra(EXTRA_MANIFEST_DIGEST);
-        VerificationParams verificationParams = new VerificationParams(null, originatingURI,
-                referrer, originatingUid, manifestDigest);
-        PackageInstallObserver observer = new PackageInstallObserver();
+        // The install itself is performed by InstallService, which outlives this activity.
+        mInstallRequested = true;
+        if (mInstallStatus != null) {
+            // Recreated after the result was reported; show it again.
+            final Message msg = mHandler.obtainMessage(INSTALL_COMPLETE);
+            msg.arg1 = mInstallStatus;
+            mHandler.sendMessage(msg);
+        } else if (mInstallService != null && mJobId == 0 && !mJobLost) {
+            startInstall();
+        }
+    }
+
+    /**
+     * Reports the job this activity was attached to before it was recreated as failed, as it
+     * was lost with its process and its result cannot be known. The install is not started again.
+     */
+    private void onJobLost() {
+        Log.w(TAG, "Lost the install of " + mAppInfo.packageName + " with its process");
+        mJobLost = false;
+        final Message msg = mHandler.obtainMessage(INSTALL_COMPLETE);
+        msg.arg1 = PackageManager.INSTALL_FAILED_INTERNAL_ERROR;
+        mHandler.sendMessage(msg);
+    }
 
-        if ("package".equals(mPackageURI.getScheme())) {
-            try {
-                pm.installExistingPackage(mAppInfo.packageName);
-                observer.packageInstalled(mAppInfo.packageName,
-                        PackageManager.INSTALL_SUCCEEDED);
-            } catch (PackageManager.NameNotFoundException e) {
-                observer.packageInstalled(mAppInfo.packageName,
-                        PackageManager.INSTALL_FAILED_INVALID_APK);
-            }
-        } else {
-            pm.installPackageWithVerificationAndEncryption(mPackageURI, observer, installFlags,
-                    installerPackageName, verificationParams, null);
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_INSTALL_REQUESTED, mInstallRequested);
+        outState.putInt(STATE_JOB_ID, mJobId);
+        outState.putInt(STATE_JOB_PID, android.os.Process.myPid());
+        if (mInstallStatus != null) {
+            outState.putInt(STATE_INSTALL_STATUS, mInstallStatus);
+        }
+    }
+
+    private void startInstall() {
+        final Intent request = new Intent(getIntent());
+        request.putExtra(InstallService.EXTRA_LABEL, mLabel);
+        mJobId = mInstallService.startInstall(request);
+        mInstallService.attach(mJobId, mInstallListener);
+    }
+
+    /**
+     * Shows the specified install progress, between 0 and 1. Progress may be reported many times
+     * per frame, so only the latest value is drawn, on the next frame.
+     */
+    private void setInstallProgress(float progress) {
+        mPendingProgress = progress;
+        if (!mProgressUpdateScheduled) {
+            mProgressUpdateScheduled = true;
+            mProgressBar.postOnAnimation(mProgressUpdater);
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mInstallService != null && mJobId != 0) {
+            // The install goes on, and its result is still logged by the service.
+            mInstallService.detach(mJobId);
+        }
+        unbindService(mServiceConnection);
+        mHandler.removeCallbacksAndMessages(null);
+        if (mProgressBar != null) {
+            mProgressBar.removeCallbacks(mProgressUpdater);
+        }
     }
 
     public void onClick(View v) {
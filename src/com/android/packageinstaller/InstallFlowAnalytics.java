@@ -23,6 +23,7 @@ import android.os.AsyncTask;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.provider.Settings;
 import android.util.EventLog;
 import android.util.Log;
@@ -85,6 +86,38 @@ public class InstallFlowAnalytics implements Parcelable {
      */
     static final byte RESULT_PACKAGE_MANAGER_INSTALL_FAILED = 6;
 
+    /**
+     * Installation failed before the package manager was invoked because the package was not
+     * expected to fit on the storage it would be installed on.
+     */
+    static final byte RESULT_FAILED_INSUFFICIENT_STORAGE = 7;
+
+    /**
+     * Installation failed before the package manager was invoked because the package cannot run
+     * on this device or cannot replace the installed version. The error code the package manager
+     * would have failed with is provided in {@link #mPackageManagerInstallResult}.
+     */
+    static final byte RESULT_FAILED_INCOMPATIBLE = 8;
+
+    /** The digest of the contents of the APK was not logged. */
+    static final byte DIGEST_MODE_NONE = 0;
+
+    /** The logged digest is the SHA-256 of the contents of the APK. */
+    static final byte DIGEST_MODE_SHA256 = 1;
+
+    /**
+     * The logged digest is the SHA-256 tree digest of the contents of the APK. See
+     * {@link MappedApk#getSha256TreeDigest()}.
+     */
+    static final byte DIGEST_MODE_SHA256_TREE = 2;
+
+    /**
+     * System property which, when true, makes the logged digest a tree digest. It is computed in
+     * parallel and is thus much faster for large APKs, but is not comparable with the SHA-256
+     * digests logged by default.
+     */
+    private static final String PROPERTY_TREE_DIGEST = "persist.pkginstaller.tree_digest";
+
     private static final int FLAG_INSTALLS_FROM_UNKNOWN_SOURCES_PERMITTED = 1 << 0;
     private static final int FLAG_INSTALL_REQUEST_FROM_UNKNOWN_SOURCE = 1 << 1;
     private static final int FLAG_VERIFY_APPS_ENABLED = 1 << 2;
@@ -139,12 +172,76 @@ public class InstallFlowAnalytics implements Parcelable {
      */
     private long mEndTimestampMillis;
 
+    /**
+     * Time it took to stream the package into an install session, in milliseconds, or {@code -1}
+     * if the package was not installed through a session.
+     */
+    private long mStagingDurationMillis = -1;
+
+    /** Number of bytes streamed into the install session. */
+    private long mStagedBytes;
+
+    /**
+     * Time from committing the install session until the package manager reported the result,
+     * covering verification, optimization and the install itself, in milliseconds, or {@code -1}
+     * if no session was committed.
+     */
+    private long mCommitDurationMillis = -1;
+
+    /** Priority with which the install was queued. See {@code InstallService.PRIORITY_...}. */
+    private byte mInstallPriority;
+
+    /** Number of installs queued or running when this one was queued. */
+    private int mInstallQueueDepth;
+
+    /**
+     * Time the install waited in the queue before it started, in milliseconds, or {@code -1} if
+     * the install was never queued.
+     */
+    private long mInstallQueueWaitMillis = -1;
+
+    /**
+     * Growth of the free space of internal storage after clearing app caches to make room for
+     * the package, in bytes.
+     */
+    private long mReclaimedBytes;
+
+    /**
+     * Time it took to clear app caches to make room for the package, in milliseconds, or
+     * {@code -1} if no caches were cleared.
+     */
+    private long mReclaimDurationMillis = -1;
+
+    /** Whether the install was attempted again after clearing app caches. */
+    private boolean mRetriedAfterReclaim;
+
+    /** Number of frames sampled while the install confirmation screen was shown. */
+    private int mConfirmFrameCount;
+
+    /** Number of janky frames among them. See {@link FrameTimeSampler}. */
+    private int mConfirmJankyFrameCount;
+
+    /** Median frame time of the install confirmation screen, in milliseconds. */
+    private int mConfirmFrameTimeP50Millis;
+
+    /** 90th percentile frame time of the install confirmation screen, in milliseconds. */
+    private int mConfirmFrameTimeP90Millis;
+
+    /** Longest frame time of the install confirmation screen, in milliseconds. */
+    private int mConfirmFrameTimeMaxMillis;
+
     /** URI of the package being installed. */
     private String mPackageUri;
 
     /** Whether this attempt has been logged to the Event Log. */
     private boolean mLogged;
 
+    /**
+     * Whether the {@link DigestCache} lookup of this flow has been counted, so that the lookup
+     * made when the flow is logged does not count the digest prefetched earlier as a hit.
+     */
+    private boolean mDigestLookupCounted;
+
     private Context mContext;
 
     public static final Parcelable.Creator<InstallFlowAnalytics> CREATOR =
@@ -170,8 +267,23 @@ public class InstallFlowAnalytics implements Parcelable {
         mPackageInfoObtainedTimestampMillis = in.readLong();
         mInstallButtonClickTimestampMillis = in.readLong();
         mEndTimestampMillis = in.readLong();
+        mStagingDurationMillis = in.readLong();
+        mStagedBytes = in.readLong();
+        mCommitDurationMillis = in.readLong();
+        mInstallPriority = in.readByte();
+        mInstallQueueDepth = in.readInt();
+        mInstallQueueWaitMillis = in.readLong();
+        mReclaimedBytes = in.readLong();
+        mReclaimDurationMillis = in.readLong();
+        mRetriedAfterReclaim = readBoolean(in);
+        mConfirmFrameCount = in.readInt();
+        mConfirmJankyFrameCount = in.readInt();
+        mConfirmFrameTimeP50Millis = in.readInt();
+        mConfirmFrameTimeP90Millis = in.readInt();
+        mConfirmFrameTimeMaxMillis = in.readInt();
         mPackageUri = in.readString();
         mLogged = readBoolean(in);
+        mDigestLookupCounted = readBoolean(in);
     }
 
     @Override
@@ -183,8 +295,23 @@ public class InstallFlowAnalytics implements Parcelable {
         dest.writeLong(mPackageInfoObtainedTimestampMillis);
         dest.writeLong(mInstallButtonClickTimestampMillis);
         dest.writeLong(mEndTimestampMillis);
+        dest.writeLong(mStagingDurationMillis);
+        dest.writeLong(mStagedBytes);
+        dest.writeLong(mCommitDurationMillis);
+        dest.writeByte(mInstallPriority);
+        dest.writeInt(mInstallQueueDepth);
+        dest.writeLong(mInstallQueueWaitMillis);
+        dest.writeLong(mReclaimedBytes);
+        dest.writeLong(mReclaimDurationMillis);
+        writeBoolean(dest, mRetriedAfterReclaim);
+        dest.writeInt(mConfirmFrameCount);
+        dest.writeInt(mConfirmJankyFrameCount);
+        dest.writeInt(mConfirmFrameTimeP50Millis);
+        dest.writeInt(mConfirmFrameTimeP90Millis);
+        dest.writeInt(mConfirmFrameTimeMaxMillis);
         dest.writeString(mPackageUri);
         writeBoolean(dest, mLogged);
+        writeBoolean(dest, mDigestLookupCounted);
     }
 
     private static void writeBoolean(Parcel dest, boolean value) {
@@ -271,6 +398,14 @@ public class InstallFlowAnalytics implements Parcelable {
         return isFlagSet(FLAG_FILE_URI);
     }
 
+    /**
+     * Gets whether the APK being installed can be read by its path, which is needed to hash its
+     * contents. APKs installed from content URIs are only streamed and are not hashed.
+     */
+    private boolean isPackageReadableByPath() {
+        return (mPackageUri != null) && "file".equals(Uri.parse(mPackageUri).getScheme());
+    }
+
     /** Sets whether this is an attempt to replace an existing package. */
     void setReplace(boolean replace) {
         setFlagState(FLAG_REPLACE, replace);
@@ -359,11 +494,13 @@ public class InstallFlowAnalytics implements Parcelable {
 
     /**
      * Records that the information about the package info has been obtained or that there has been
-     * a failure to obtain the information.
+     * a failure to obtain the information, at the specified time instant measured in elapsed
+     * realtime milliseconds. See {@link SystemClock#elapsedRealtime()}. The package is loaded on a
+     * worker thread, so the instant is captured there rather than when this is invoked.
      */
-    void setPackageInfoObtained() {
+    void setPackageInfoObtained(long timestampMillis) {
         setFlagState(FLAG_PACKAGE_INFO_OBTAINED, true);
-        mPackageInfoObtainedTimestampMillis = SystemClock.elapsedRealtime();
+        mPackageInfoObtainedTimestampMillis = timestampMillis;
     }
 
     /**
@@ -389,6 +526,62 @@ public class InstallFlowAnalytics implements Parcelable {
         return isFlagSet(FLAG_INSTALL_BUTTON_CLICKED);
     }
 
+    /**
+     * Records how the install was scheduled by {@link InstallService}.
+     *
+     * @param priority priority of the install
+     * @param queueDepth number of installs queued or running when this one was queued
+     * @param waitMillis time the install waited before it started, in milliseconds
+     */
+    void setInstallQueued(byte priority, int queueDepth, long waitMillis) {
+        mInstallPriority = priority;
+        mInstallQueueDepth = queueDepth;
+        mInstallQueueWaitMillis = waitMillis;
+    }
+
+    /**
+     * Records that the package has been streamed into an install session.
+     *
+     * @param durationMillis time it took to create the session and stream the package into it
+     * @param bytes number of bytes streamed
+     */
+    void setStagingFinished(long durationMillis, long bytes) {
+        mStagingDurationMillis = durationMillis;
+        mStagedBytes = bytes;
+    }
+
+    /**
+     * Records the time from committing the install session until the package manager reported
+     * the result, in milliseconds.
+     */
+    void setCommitFinished(long durationMillis) {
+        mCommitDurationMillis = durationMillis;
+    }
+
+    /**
+     * Records that app caches were cleared to make room for the package.
+     *
+     * @param bytes growth of the free space of internal storage
+     * @param durationMillis time it took to clear the caches
+     * @param retried whether the install is attempted again as a result
+     */
+    void setStorageReclaimed(long bytes, long durationMillis, boolean retried) {
+        mReclaimedBytes = bytes;
+        mReclaimDurationMillis = durationMillis;
+        mRetriedAfterReclaim = retried;
+    }
+
+    /**
+     * Records the frame times sampled while the install confirmation screen was shown.
+     */
+    void setConfirmFrameTimes(FrameTimeSampler sampler) {
+        mConfirmFrameCount = sampler.getFrameCount();
+        mConfirmJankyFrameCount = sampler.getJankyFrameCount();
+        mConfirmFrameTimeP50Millis = sampler.getFrameTimePercentileMillis(50);
+        mConfirmFrameTimeP90Millis = sampler.getFrameTimePercentileMillis(90);
+        mConfirmFrameTimeMaxMillis = sampler.getFrameTimePercentileMillis(100);
+    }
+
     /**
      * Marks this flow as finished due to {@code PackageManager} succeeding or failing to install
      * the package and reports this to the Event Log.
@@ -404,6 +597,15 @@ public class InstallFlowAnalytics implements Parcelable {
         }
     }
 
+    /**
+     * Marks this flow as finished due to the package failing the compatibility checks with the
+     * specified {@code PackageManager} error code, and reports this to the Event Log.
+     */
+    void setFlowFinishedIncompatible(int packageManagerResult) {
+        mPackageManagerInstallResult = packageManagerResult;
+        setFlowFinished(InstallFlowAnalytics.RESULT_FAILED_INCOMPATIBLE);
+    }
+
     /**
      * Marks this flow as finished and reports this to the Event Log.
      */
@@ -418,7 +620,8 @@ public class InstallFlowAnalytics implements Parcelable {
 
     private void writeToEventLog() {
         byte packageManagerInstallResultByte = 0;
-        if (mResult == RESULT_PACKAGE_MANAGER_INSTALL_FAILED) {
+        if (mResult == RESULT_PACKAGE_MANAGER_INSTALL_FAILED
+                || mResult == RESULT_FAILED_INCOMPATIBLE) {
             // PackageManager install error codes are negative, starting from -1 and going to
             // -111 (at the moment). We thus store them in negated form.
             packageManagerInstallResultByte = clipUnsignedValueToUnsignedByte(
@@ -450,16 +653,19 @@ public class InstallFlowAnalytics implements Parcelable {
         // If this user has consented to app verification, augment the logged event with the hash of
         // the contents of the APK.
         if (((mFlags & FLAG_FILE_URI) != 0)
+                && isPackageReadableByPath()
                 && ((mFlags & FLAG_VERIFY_APPS_ENABLED) != 0)
                 && (isUserConsentToVerifyAppsGranted())) {
             // Log the hash of the APK's contents.
             // Reading the APK may take a while -- perform in background.
+            final boolean countDigestLookup = !mDigestLookupCounted;
             AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
                 @Override
                 public void run() {
+                    final byte digestMode = getConfiguredDigestMode();
                     byte[] digest = null;
                     try {
-                        digest = getPackageContentsDigest();
+                        digest = getPackageContentsDigest(digestMode, countDigestLookup);
                     } catch (IOException e) {
                         Log.w(TAG, "Failed to hash APK contents", e);
                     } finally {
@@ -471,7 +677,13 @@ public class InstallFlowAnalytics implements Parcelable {
                                 totalElapsedTime,
                                 elapsedTimeTillPackageInfoObtained,
                                 elapsedTimeTillInstallButtonClick,
-                                digestHex);
+                                digestHex,
+                                (digest != null) ? digestMode : DIGEST_MODE_NONE);
+                        final DigestCache digestCache = DigestCache.getInstance(mContext);
+                        EventLogTags.writeInstallPackageDigestCache(
+                                digestCache.getHitCount(),
+                                digestCache.getMissCount(),
+                                digestCache.getBytesNotRead());
                     }
                 }
             });
@@ -482,10 +694,55 @@ public class InstallFlowAnalytics implements Parcelable {
                     totalElapsedTime,
                     elapsedTimeTillPackageInfoObtained,
                     elapsedTimeTillInstallButtonClick,
-                    "");
+                    "",
+                    DIGEST_MODE_NONE);
         }
         mLogged = true;
 
+        final PackageParseCache parseCache = PackageParseCache.getInstance();
+        EventLogTags.writeInstallPackageParseCache(
+                parseCache.getPackageHitCount(),
+                parseCache.getPackageMissCount(),
+                parseCache.getSnippetHitCount(),
+                parseCache.getSnippetMissCount(),
+                parseCache.getEvictionCount());
+
+        if (mStagingDurationMillis >= 0) {
+            EventLogTags.writeInstallPackageSessionPhases(
+                    clipUnsignedLongToUnsignedInt(mStagingDurationMillis),
+                    (mCommitDurationMillis >= 0)
+                            ? clipUnsignedLongToUnsignedInt(mCommitDurationMillis)
+                            : -1,
+                    mStagedBytes);
+        }
+
+        if (mInstallQueueWaitMillis >= 0) {
+            EventLogTags.writeInstallPackageQueue(
+                    mInstallPriority,
+                    mInstallQueueDepth,
+                    clipUnsignedLongToUnsignedInt(mInstallQueueWaitMillis));
+        }
+
+        // Result of the install attempted after clearing caches, or 0 if there was none.
+        final int retryResult = (mRetriedAfterReclaim
+                && (mResult == RESULT_SUCCESS || mResult == RESULT_PACKAGE_MANAGER_INSTALL_FAILED))
+                ? mPackageManagerInstallResult : 0;
+        if (mReclaimDurationMillis >= 0) {
+            EventLogTags.writeInstallPackageStorageReclaim(
+                    mReclaimedBytes,
+                    clipUnsignedLongToUnsignedInt(mReclaimDurationMillis),
+                    retryResult);
+        }
+
+        if (mConfirmFrameCount > 0) {
+            EventLogTags.writeInstallPackageConfirmFrames(
+                    mConfirmFrameCount,
+                    mConfirmJankyFrameCount,
+                    mConfirmFrameTimeP50Millis,
+                    mConfirmFrameTimeP90Millis,
+                    mConfirmFrameTimeMaxMillis);
+        }
+
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
             Log.v(TAG, "Analytics:"
                     + "\n\tinstallsFromUnknownSourcesPermitted: "
@@ -513,6 +770,35 @@ public class InstallFlowAnalytics implements Parcelable {
                     + "\n\ttimeTillInstallButtonClick: "
                         + ((isInstallButtonClicked())
                             ? ((mInstallButtonClickTimestampMillis - mStartTimestampMillis) + " ms")
+                            : "n/a")
+                    + "\n\tparseCache: packages " + parseCache.getPackageHitCount() + " hits / "
+                        + parseCache.getPackageMissCount() + " misses, snippets "
+                        + parseCache.getSnippetHitCount() + " hits / "
+                        + parseCache.getSnippetMissCount() + " misses, "
+                        + parseCache.getEvictionCount() + " evictions"
+                    + "\n\tstagingDuration: "
+                        + ((mStagingDurationMillis >= 0)
+                            ? (mStagingDurationMillis + " ms, " + mStagedBytes + " bytes")
+                            : "n/a")
+                    + "\n\tcommitDuration: "
+                        + ((mCommitDurationMillis >= 0) ? (mCommitDurationMillis + " ms") : "n/a")
+                    + "\n\tinstallQueue: "
+                        + ((mInstallQueueWaitMillis >= 0)
+                            ? ("priority " + mInstallPriority + ", depth " + mInstallQueueDepth
+                                    + ", wait " + mInstallQueueWaitMillis + " ms")
+                            : "n/a")
+                    + "\n\tstorageReclaim: "
+                        + ((mReclaimDurationMillis >= 0)
+                            ? (mReclaimedBytes + " bytes in " + mReclaimDurationMillis + " ms"
+                                    + (mRetriedAfterReclaim
+                                            ? ", retry result " + retryResult : ", no retry"))
+                            : "n/a")
+                    + "\n\tconfirmFrames: "
+                        + ((mConfirmFrameCount > 0)
+                            ? (mConfirmFrameCount + " frames, " + mConfirmJankyFrameCount
+                                    + " janky, p50 " + mConfirmFrameTimeP50Millis + " ms, p90 "
+                                    + mConfirmFrameTimeP90Millis + " ms, max "
+                                    + mConfirmFrameTimeMaxMillis + " ms")
                             : "n/a"));
             Log.v(TAG, "Wrote to Event Log: 0x" + Long.toString(resultAndFlags & 0xffffffffL, 16)
                     + ", " + totalElapsedTime
@@ -569,11 +855,88 @@ public class InstallFlowAnalytics implements Parcelable {
     }
 
     /**
-     * Gets the digest of the contents of the package being installed.
+     * Starts computing the digest of the contents of the package being installed in the
+     * background if it is going to be logged. This is the one sequential read of the APK in the
+     * install flow. It is meant to be called once the user has chosen to install, so that a
+     * cancelled review never reads the APK; it then overlaps with the install, and the digest is
+     * remembered by the shared {@link MappedApk} until the flow is logged. Must be called before
+     * this object is parcelled to the next screen.
+     */
+    void prefetchPackageContentsDigest() {
+        if (!isFileUri() || !isPackageReadableByPath() || !isVerifyAppsEnabled()
+                || mDigestLookupCounted) {
+            return;
+        }
+        // The prefetch makes the lookup of this flow; the one made when logging is not counted.
+        mDigestLookupCounted = true;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isUserConsentToVerifyAppsGranted()) {
+                    return;
+                }
+                try {
+                    getPackageContentsDigest(getConfiguredDigestMode(), true);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to hash APK contents", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the mode in which the digest of the contents of the package is to be computed.
      */
-    private byte[] getPackageContentsDigest() throws IOException {
+    private static byte getConfiguredDigestMode() {
+        return SystemProperties.getBoolean(PROPERTY_TREE_DIGEST, false)
+                ? DIGEST_MODE_SHA256_TREE
+                : DIGEST_MODE_SHA256;
+    }
+
+    /**
+     * Gets the digest of the contents of the package being installed in the specified mode. The
+     * digest is served from {@link DigestCache} if this very file has been hashed before.
+     *
+     * @param countLookup whether the cache lookup counts towards the statistics of the cache
+     */
+    private byte[] getPackageContentsDigest(byte digestMode, boolean countLookup)
+            throws IOException {
         File file = new File(Uri.parse(mPackageUri).getPath());
-        return getSha256ContentsDigest(file);
+        final PackageParseCache.Key key = PackageParseCache.Key.forFile(file);
+        final DigestCache digestCache = DigestCache.getInstance(mContext);
+        if (key != null) {
+            final byte[] digest = digestCache.get(key, digestMode, countLookup);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        final byte[] digest = computePackageContentsDigest(file, digestMode);
+        if (key != null) {
+            digestCache.put(key, digestMode, digest);
+        }
+        return digest;
+    }
+
+    private static byte[] computePackageContentsDigest(File file, byte digestMode)
+            throws IOException {
+        final MappedApk apk;
+        if (digestMode == DIGEST_MODE_SHA256_TREE) {
+            // The tree digest is only computed over the mapping; there is no fallback.
+            apk = PackageUtil.getMappedApk(file);
+        } else {
+            try {
+                apk = PackageUtil.getMappedApk(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to map " + file + ", reading it instead", e);
+                return getSha256ContentsDigest(file);
+            }
+        }
+        try {
+            return (digestMode == DIGEST_MODE_SHA256_TREE)
+                    ? apk.getSha256TreeDigest() : apk.getSha256Digest();
+        } finally {
+            apk.close();
+        }
     }
 
     /**
@@ -0,0 +1,223 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Environment;
+import android.os.storage.StorageManager;
+import android.provider.Settings;
+
+import java.io.File;
+
+/**
+ * Picks the storage a package is installed on, so that installs don't have to ask the user.
+ *
+ * <p>The policy is measured once, off the main thread, from the free space of internal and
+ * external storage and the install location remembered in
+ * {@link Settings.Global#DEFAULT_INSTALL_LOCATION}. Decisions are then made on any thread from
+ * the manifest's {@code installLocation} and the {@link InstallSizeEstimate} of each package:
+ * <ul>
+ * <li>packages which must be installed internally, or which replace an installed package, are
+ * left where the package manager puts them;
+ * <li>otherwise the package goes to the remembered location, or to the location the package
+ * prefers if none is remembered, as long as it leaves that volume above its low storage
+ * threshold;
+ * <li>failing that, it goes to the other volume if it fits there and the package may run from
+ * external storage.
+ * </ul>
+ */
+final class InstallLocationPolicy {
+    /** Values of {@link Settings.Global#DEFAULT_INSTALL_LOCATION}. */
+    static final int LOCATION_AUTO = 0;
+    static final int LOCATION_DEVICE = 1;
+    static final int LOCATION_SDCARD = 2;
+
+    private long mInternalFreeBytes;
+    private final long mInternalLowBytes;
+    /** Free space of external storage, or {@code -1} if packages cannot be installed on it. */
+    private long mExternalFreeBytes;
+    private final long mExternalLowBytes;
+    private int mDefaultLocation;
+
+    private InstallLocationPolicy(long internalFreeBytes, long internalLowBytes,
+            long externalFreeBytes, long externalLowBytes, int defaultLocation) {
+        mInternalFreeBytes = internalFreeBytes;
+        mInternalLowBytes = internalLowBytes;
+        mExternalFreeBytes = externalFreeBytes;
+        mExternalLowBytes = externalLowBytes;
+        mDefaultLocation = defaultLocation;
+    }
+
+    /**
+     * Measures the storage of the device and reads the remembered install location. This queries
+     * the file system and settings, so must be called off the main thread.
+     */
+    static InstallLocationPolicy measure(Context context) {
+        final StorageManager storage = StorageManager.from(context);
+        final File dataDir = Environment.getDataDirectory();
+        long externalFreeBytes = -1;
+        long externalLowBytes = 0;
+        // Packages can only be moved to physical external storage, never to emulated storage.
+        if (!Environment.isExternalStorageEmulated()
+                && Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            final File externalDir = Environment.getExternalStorageDirectory();
+            externalFreeBytes = externalDir.getUsableSpace();
+            externalLowBytes = storage.getStorageLowBytes(externalDir);
+        }
+        return new InstallLocationPolicy(dataDir.getUsableSpace(),
+                storage.getStorageLowBytes(dataDir), externalFreeBytes, externalLowBytes,
+                Settings.Global.getInt(context.getContentResolver(),
+                        Settings.Global.DEFAULT_INSTALL_LOCATION, LOCATION_AUTO));
+    }
+
+    /**
+     * Returns the install location decisions are based on; one of the {@code LOCATION_*}
+     * constants.
+     */
+    synchronized int getDefaultLocation() {
+        return mDefaultLocation;
+    }
+
+    /**
+     * Makes subsequent decisions use the specified install location, as chosen by the user, rather
+     * than the remembered one.
+     */
+    synchronized void setDefaultLocation(int location) {
+        mDefaultLocation = location;
+    }
+
+    /**
+     * Returns the install flags placing a package, {@link PackageManager#INSTALL_INTERNAL},
+     * {@link PackageManager#INSTALL_EXTERNAL} or {@code 0} to let the package manager decide.
+     *
+     * @param installLocation the {@code installLocation} declared by the package's manifest
+     * @param size the expected footprint of the package once installed
+     * @param replace whether the package replaces an installed one
+     */
+    synchronized int getInstallFlags(int installLocation, InstallSizeEstimate size,
+            boolean replace) {
+        if (replace || installLocation == PackageInfo.INSTALL_LOCATION_INTERNAL_ONLY) {
+            // The package manager keeps replaced packages where they are.
+            return 0;
+        }
+        final boolean fitsInternal = getShortfallBytes(false, size) == 0;
+        final boolean fitsExternal = mExternalFreeBytes >= 0
+                && getShortfallBytes(true, size) == 0;
+        // Packages which don't declare a location may not work from external storage.
+        final boolean externalAllowed = installLocation == PackageInfo.INSTALL_LOCATION_AUTO
+                || installLocation == PackageInfo.INSTALL_LOCATION_PREFER_EXTERNAL;
+
+        final boolean preferExternal;
+        if (mDefaultLocation == LOCATION_DEVICE) {
+            preferExternal = false;
+        } else if (mDefaultLocation == LOCATION_SDCARD) {
+            preferExternal = true;
+        } else {
+            preferExternal = installLocation == PackageInfo.INSTALL_LOCATION_PREFER_EXTERNAL;
+        }
+
+        if (preferExternal && fitsExternal) {
+            return PackageManager.INSTALL_EXTERNAL;
+        } else if (fitsInternal) {
+            return PackageManager.INSTALL_INTERNAL;
+        } else if (externalAllowed && fitsExternal && mDefaultLocation != LOCATION_DEVICE) {
+            return PackageManager.INSTALL_EXTERNAL;
+        }
+        // Nothing fits; the package manager reports the failure.
+        return 0;
+    }
+
+    /**
+     * Returns how many more bytes must be freed for a package to be installed on the specified
+     * volume without taking it below its low storage threshold, or {@code 0} if it fits. The
+     * dex optimization output of packages on external storage is accounted for on internal
+     * storage, where the package manager writes it.
+     *
+     * @param external whether the package's code goes to external storage
+     */
+    synchronized long getShortfallBytes(boolean external, InstallSizeEstimate size) {
+        if (!external) {
+            return getShortfallBytes(mInternalFreeBytes, mInternalLowBytes,
+                    size.getTotalBytes());
+        }
+        if (mExternalFreeBytes < 0) {
+            // Not measurable; the package manager reports the failure.
+            return 0;
+        }
+        return getShortfallBytes(mExternalFreeBytes, mExternalLowBytes, size.getCodeBytes())
+                + getShortfallBytes(mInternalFreeBytes, mInternalLowBytes, size.dexOptBytes);
+    }
+
+    /**
+     * Returns how many bytes must be free on internal storage for a package to be installed
+     * without taking it below its low storage threshold; see {@link CacheReclaimer}.
+     *
+     * @param external whether the package's code goes to external storage
+     */
+    long getRequiredInternalFreeBytes(boolean external, InstallSizeEstimate size) {
+        return (external ? size.dexOptBytes : size.getTotalBytes()) + mInternalLowBytes;
+    }
+
+    /**
+     * Returns whether a package installed with the specified location flags has its code on
+     * external storage.
+     *
+     * @param installedAppInfo the package being replaced, or {@code null}
+     */
+    static boolean isExternal(int locationFlags, ApplicationInfo installedAppInfo) {
+        if (locationFlags != 0) {
+            return (locationFlags & PackageManager.INSTALL_EXTERNAL) != 0;
+        }
+        // The package manager keeps replaced packages where they are, and installs new ones
+        // internally unless they ask otherwise.
+        return installedAppInfo != null
+                && (installedAppInfo.flags & ApplicationInfo.FLAG_EXTERNAL_STORAGE) != 0;
+    }
+
+    /**
+     * Returns the size of the APKs of an installed package, which are freed when it is replaced.
+     */
+    static long getCodeBytes(ApplicationInfo appInfo) {
+        long bytes = (appInfo.sourceDir != null) ? new File(appInfo.sourceDir).length() : 0;
+        if (appInfo.splitSourceDirs != null) {
+            for (String splitSourceDir : appInfo.splitSourceDirs) {
+                bytes += new File(splitSourceDir).length();
+            }
+        }
+        return bytes;
+    }
+
+    private static long getShortfallBytes(long freeBytes, long lowBytes, long bytes) {
+        return Math.max(0, bytes + lowBytes - freeBytes);
+    }
+
+    /**
+     * Accounts for the space taken by a package that is going to be installed with the
+     * specified install flags, so that the following decisions of a batch see it.
+     */
+    synchronized void reserve(int installFlags, InstallSizeEstimate size) {
+        if ((installFlags & PackageManager.INSTALL_EXTERNAL) != 0) {
+            mExternalFreeBytes = Math.max(0, mExternalFreeBytes - size.getCodeBytes());
+            mInternalFreeBytes = Math.max(0, mInternalFreeBytes - size.dexOptBytes);
+        } else {
+            mInternalFreeBytes = Math.max(0, mInternalFreeBytes - size.getTotalBytes());
+        }
+    }
+}
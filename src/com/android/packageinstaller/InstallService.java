@@ -0,0 +1,495 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.IPackageInstallObserver;
+import android.content.pm.ManifestDigest;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.VerificationParams;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import libcore.io.IoUtils;
+
+/**
+ * Service which performs installs on behalf of {@link InstallAppProgress}. Each install is a job
+ * which owns the call into the package manager, the observer of its result and the
+ * {@link InstallFlowAnalytics} of the flow, so that the result is logged even if the activity
+ * which requested the install goes away. Activities bind to the service and attach a
+ * {@link Listener} to a job only to render its progress and result.
+ *
+ * <p>Jobs are started with {@link #startInstall} by bound activities and are queued. At most
+ * {@link #MAX_RUNNING_JOBS} of them run at once, so that bulk installs do not contend for I/O and
+ * CPU, and installs requested by users run before those pushed by device policy. Policy pushes are
+ * rejected with {@code INSTALL_FAILED_ABORTED} once {@link #MAX_QUEUED_POLICY_JOBS} of them are
+ * waiting, so that their senders back off. Starting a job also starts the service, which stops
+ * itself once it has no jobs left to run; activities still bound to it keep it, and the results
+ * they have not been given yet, alive.
+ */
+public class InstallService extends Service {
+    private static final String TAG = "InstallService";
+
+    static final String EXTRA_LABEL = PackageUtil.PREFIX + "label";
+    static final String EXTRA_PRIORITY = PackageUtil.PREFIX + "installPriority";
+    /**
+     * Whether to stream the package into an install session even if it can be installed by path,
+     * so that the install reports its progress and is attributed to this installer.
+     */
+    static final String EXTRA_STREAM_INTO_SESSION = PackageUtil.PREFIX + "streamIntoSession";
+    /**
+     * Install flags placing the package, as decided by {@link InstallLocationPolicy}; the package
+     * manager decides if absent.
+     */
+    static final String EXTRA_LOCATION_FLAGS = PackageUtil.PREFIX + "locationFlags";
+    /**
+     * Free space internal storage needs for the install, in bytes. If present, an install failing
+     * for lack of storage is retried once after clearing app caches to free that much.
+     */
+    static final String EXTRA_REQUIRED_FREE_BYTES = PackageUtil.PREFIX + "requiredFreeBytes";
+
+    /** Priority of installs requested by the user through an app. */
+    static final byte PRIORITY_USER = 0;
+
+    /** Priority of installs requested by a device or profile owner, or another device admin. */
+    static final byte PRIORITY_POLICY = 1;
+
+    /** Maximum number of installs running at once. */
+    private static final int MAX_RUNNING_JOBS = 2;
+
+    /** Maximum number of policy installs waiting to run. */
+    private static final int MAX_QUEUED_POLICY_JOBS = 16;
+
+    private static final int MSG_INSTALL_COMPLETE = 1;
+
+    /** Only accessed on the main thread. */
+    private static int sNextJobId = 1;
+
+    /**
+     * Receiver of the progress and result of a job. Called on the main thread.
+     */
+    interface Listener {
+        /**
+         * @param progress progress between 0 and 1; only reported for installs through sessions
+         */
+        void onInstallProgress(float progress);
+
+        /**
+         * @param legacyStatus {@link PackageManager#INSTALL_SUCCEEDED} or one of the
+         *        {@code PackageManager.INSTALL_FAILED_*} codes
+         */
+        void onInstallFinished(int legacyStatus);
+    }
+
+    class LocalBinder extends Binder {
+        InstallService getService() {
+            return InstallService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    /** Jobs which are queued, running, or finished but not yet reported to a listener. */
+    private final SparseArray<InstallJob> mJobs = new SparseArray<InstallJob>();
+    /** Jobs waiting to run, by priority and then in the order they were queued. */
+    private final PriorityQueue<InstallJob> mPendingJobs = new PriorityQueue<InstallJob>(11,
+            new Comparator<InstallJob>() {
+                @Override
+                public int compare(InstallJob lhs, InstallJob rhs) {
+                    if (lhs.priority != rhs.priority) {
+                        return lhs.priority - rhs.priority;
+                    }
+                    return lhs.id - rhs.id;
+                }
+            });
+    private int mQueuedPolicyJobs;
+    private int mRunningJobs;
+    private int mLastStartId;
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_INSTALL_COMPLETE:
+                    final InstallJob job = mJobs.get(msg.arg1);
+                    if (job != null) {
+                        onJobFinished(job, msg.arg2);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    /**
+     * Install of a single package.
+     */
+    private final class InstallJob {
+        final int id;
+        final Uri packageUri;
+        final ApplicationInfo appInfo;
+        final CharSequence label;
+        final String installerPackageName;
+        final Uri originatingUri;
+        final Uri referrer;
+        final int originatingUid;
+        final ManifestDigest manifestDigest;
+        final int stagedInstallToken;
+        final InstallFlowAnalytics analytics;
+        final byte priority;
+        final boolean streamIntoSession;
+        final int locationFlags;
+        final long requiredFreeBytes;
+
+        /** Number of jobs queued or running when this one was queued. */
+        int queueDepth;
+        long queuedMillis;
+        boolean started;
+        boolean reclaimAttempted;
+        /** Duplicate of the descriptor the APK was first streamed from, kept for a retry. */
+        ParcelFileDescriptor retryFd;
+        SessionInstaller sessionInstaller;
+        Listener listener;
+        float progress;
+        boolean finished;
+        int legacyStatus;
+
+        InstallJob(int id, Intent intent) {
+            this.id = id;
+            packageUri = intent.getData();
+            appInfo = intent.getParcelableExtra(PackageUtil.INTENT_ATTR_APPLICATION_INFO);
+            label = intent.getCharSequenceExtra(EXTRA_LABEL);
+            installerPackageName = intent.getStringExtra(Intent.EXTRA_INSTALLER_PACKAGE_NAME);
+            originatingUri = intent.getParcelableExtra(Intent.EXTRA_ORIGINATING_URI);
+            referrer = intent.getParcelableExtra(Intent.EXTRA_REFERRER);
+            originatingUid = intent.getIntExtra(Intent.EXTRA_ORIGINATING_UID,
+                    VerificationParams.NO_UID);
+            manifestDigest = intent.getParcelableExtra(InstallAppProgress.EXTRA_MANIFEST_DIGEST);
+            stagedInstallToken = intent.getIntExtra(
+                    InstallAppProgress.EXTRA_STAGED_INSTALL_TOKEN, 0);
+            analytics = intent.getParcelableExtra(
+                    InstallAppProgress.EXTRA_INSTALL_FLOW_ANALYTICS);
+            analytics.setContext(InstallService.this);
+            priority = intent.getByteExtra(EXTRA_PRIORITY, PRIORITY_USER);
+            streamIntoSession = intent.getBooleanExtra(EXTRA_STREAM_INTO_SESSION, false);
+            locationFlags = intent.getIntExtra(EXTRA_LOCATION_FLAGS, 0);
+            requiredFreeBytes = intent.getLongExtra(EXTRA_REQUIRED_FREE_BYTES, 0);
+        }
+    }
+
+    /**
+     * Observer of a legacy install. Only refers to the service through its handler, which is
+     * released once the result has been delivered.
+     */
+    private static class PackageInstallObserver extends IPackageInstallObserver.Stub {
+        private final int mJobId;
+        private Handler mHandler;
+
+        PackageInstallObserver(int jobId, Handler handler) {
+            mJobId = jobId;
+            mHandler = handler;
+        }
+
+        public synchronized void packageInstalled(String packageName, int returnCode) {
+            if (mHandler == null) {
+                return;
+            }
+            mHandler.obtainMessage(MSG_INSTALL_COMPLETE, mJobId, returnCode).sendToTarget();
+            mHandler = null;
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Jobs are queued through the binder; starting only keeps the service running for them.
+        mLastStartId = startId;
+        stopIfIdle();
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Queues the install of a package.
+     *
+     * @param request the data and extras of the install, as passed to {@link InstallAppProgress},
+     *        and {@link #EXTRA_LABEL}
+     * @return the ID of the job, to {@link #attach} to it with
+     */
+    int startInstall(Intent request) {
+        startService(new Intent(this, InstallService.class));
+        final InstallJob job = new InstallJob(sNextJobId++, request);
+        job.queueDepth = mPendingJobs.size() + mRunningJobs;
+        job.queuedMillis = SystemClock.elapsedRealtime();
+        mJobs.put(job.id, job);
+        if (job.priority == PRIORITY_POLICY && mQueuedPolicyJobs >= MAX_QUEUED_POLICY_JOBS) {
+            Log.w(TAG, "Too many queued installs; rejecting " + job.appInfo.packageName);
+            final SessionInstaller staged = SessionInstaller.claim(job.stagedInstallToken);
+            if (staged != null) {
+                staged.abandon();
+            }
+            mHandler.obtainMessage(MSG_INSTALL_COMPLETE, job.id,
+                    PackageManager.INSTALL_FAILED_ABORTED).sendToTarget();
+            return job.id;
+        }
+        if (job.priority == PRIORITY_POLICY) {
+            mQueuedPolicyJobs++;
+        }
+        mPendingJobs.add(job);
+        startPendingJobs();
+        return job.id;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Attaches a listener to the specified job. If the job has already finished, the listener is
+     * notified right away.
+     *
+     * @return {@code false} if there is no such job, for example because the process has been
+     *         restarted since it was queued
+     */
+    boolean attach(int jobId, Listener listener) {
+        final InstallJob job = mJobs.get(jobId);
+        if (job == null) {
+            return false;
+        }
+        job.listener = listener;
+        if (job.finished) {
+            mJobs.remove(jobId);
+            listener.onInstallFinished(job.legacyStatus);
+        } else if (job.progress > 0) {
+            listener.onInstallProgress(job.progress);
+        }
+        return true;
+    }
+
+    /**
+     * Detaches the listener of the specified job. The job keeps running, and its result is logged
+     * but no longer reported.
+     */
+    void detach(int jobId) {
+        final InstallJob job = mJobs.get(jobId);
+        if (job == null) {
+            return;
+        }
+        job.listener = null;
+        if (job.finished) {
+            mJobs.remove(jobId);
+        }
+    }
+
+    private void startPendingJobs() {
+        while (mRunningJobs < MAX_RUNNING_JOBS && !mPendingJobs.isEmpty()) {
+            final InstallJob job = mPendingJobs.poll();
+            if (job.priority == PRIORITY_POLICY) {
+                mQueuedPolicyJobs--;
+            }
+            job.started = true;
+            mRunningJobs++;
+            job.analytics.setInstallQueued(job.priority, job.queueDepth,
+                    SystemClock.elapsedRealtime() - job.queuedMillis);
+            startJob(job);
+        }
+    }
+
+    private void startJob(final InstallJob job) {
+        final PackageManager pm = getPackageManager();
+        int installFlags = job.locationFlags;
+        // Asks the package manager rather than the index, which may not have seen a recent change.
+        try {
+            PackageInfo pi = pm.getPackageInfo(job.appInfo.packageName,
+                    PackageManager.GET_UNINSTALLED_PACKAGES);
+            if (pi != null) {
+                installFlags |= PackageManager.INSTALL_REPLACE_EXISTING;
+            }
+        } catch (NameNotFoundException e) {
+        }
+        if ((installFlags & PackageManager.INSTALL_REPLACE_EXISTING) != 0) {
+            Log.w(TAG, "Replacing package:" + job.appInfo.packageName);
+        }
+
+        final PackageInstallObserver observer = new PackageInstallObserver(job.id, mHandler);
+        final SessionInstaller staged = SessionInstaller.claim(job.stagedInstallToken);
+        final String scheme = job.packageUri.getScheme();
+        if ("package".equals(scheme)) {
+            try {
+                pm.installExistingPackage(job.appInfo.packageName);
+                observer.packageInstalled(job.appInfo.packageName,
+                        PackageManager.INSTALL_SUCCEEDED);
+            } catch (PackageManager.NameNotFoundException e) {
+                observer.packageInstalled(job.appInfo.packageName,
+                        PackageManager.INSTALL_FAILED_INVALID_APK);
+            }
+        } else if (staged != null) {
+            // The APK was streamed into a session while the user reviewed the install.
+            setSessionInstaller(job, staged);
+            staged.commit();
+        } else if ("content".equals(scheme) || job.streamIntoSession) {
+            // A retry streams the same file again rather than whatever the URI now opens.
+            ParcelFileDescriptor packageFd = job.retryFd;
+            job.retryFd = null;
+            if (packageFd == null) {
+                try {
+                    packageFd = getContentResolver().openFileDescriptor(job.packageUri, "r");
+                } catch (FileNotFoundException e) {
+                    Log.w(TAG, "Failed to open " + job.packageUri, e);
+                }
+            }
+            if (packageFd == null) {
+                observer.packageInstalled(job.appInfo.packageName,
+                        PackageManager.INSTALL_FAILED_INVALID_URI);
+                return;
+            }
+            if (!job.reclaimAttempted && job.requiredFreeBytes > 0) {
+                // The installer closes its source once streamed; keep a duplicate to retry from.
+                try {
+                    job.retryFd = packageFd.dup();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to keep " + job.packageUri + " for a retry", e);
+                }
+            }
+            final PackageInstaller.SessionParams params = SessionInstaller.createSessionParams(
+                    job.appInfo, job.label, packageFd.getStatSize(), job.locationFlags,
+                    job.originatingUri, job.referrer);
+            setSessionInstaller(job, new SessionInstaller(this, packageFd, params, null));
+            // The APK is reopened here, so check that what is staged is still the package
+            // which was reviewed, whether it came from a provider or a batch file.
+            job.sessionInstaller.setExpectedPackage(job.appInfo.packageName, job.manifestDigest);
+            job.sessionInstaller.start();
+        } else {
+            final VerificationParams verificationParams = new VerificationParams(null,
+                    job.originatingUri, job.referrer, job.originatingUid, job.manifestDigest);
+            pm.installPackageWithVerificationAndEncryption(job.packageUri, observer,
+                    installFlags, job.installerPackageName, verificationParams, null);
+        }
+    }
+
+    private void setSessionInstaller(final InstallJob job, SessionInstaller installer) {
+        job.sessionInstaller = installer;
+        installer.setCallback(new SessionInstaller.Callback() {
+            @Override
+            public void onProgressChanged(float progress) {
+                job.progress = progress;
+                if (job.listener != null) {
+                    job.listener.onInstallProgress(progress);
+                }
+            }
+
+            @Override
+            public void onInstallFinished(int legacyStatus) {
+                onJobFinished(job, legacyStatus);
+            }
+        });
+    }
+
+    private void onJobFinished(InstallJob job, int legacyStatus) {
+        if (job.finished) {
+            return;
+        }
+        if (legacyStatus == PackageManager.INSTALL_FAILED_INSUFFICIENT_STORAGE && job.started
+                && !job.reclaimAttempted && job.requiredFreeBytes > 0) {
+            reclaimAndRetry(job);
+            return;
+        }
+        job.finished = true;
+        job.legacyStatus = legacyStatus;
+        IoUtils.closeQuietly(job.retryFd);
+        job.retryFd = null;
+        if (job.started) {
+            mRunningJobs--;
+        } else {
+            // Rejected without being queued.
+            job.analytics.setInstallQueued(job.priority, job.queueDepth, 0);
+        }
+
+        final SessionInstaller installer = job.sessionInstaller;
+        if (installer != null) {
+            job.analytics.setStagingFinished(installer.getStagingDurationMillis(),
+                    installer.getStagedBytes());
+            if (installer.getCommitDurationMillis() > 0) {
+                job.analytics.setCommitFinished(installer.getCommitDurationMillis());
+            }
+            job.sessionInstaller = null;
+        }
+        job.analytics.setFlowFinishedWithPackageManagerResult(legacyStatus);
+
+        if (job.listener != null) {
+            mJobs.remove(job.id);
+            job.listener.onInstallFinished(legacyStatus);
+        }
+        startPendingJobs();
+        stopIfIdle();
+    }
+
+    /**
+     * Clears app caches to make room for a job that failed for lack of storage, then runs it again
+     * if that freed any space. The job keeps its slot meanwhile. A streamed job is retried from
+     * the descriptor it was first streamed from; a job whose session was staged during review
+     * reopens its URI, and the staged APK is checked against the reviewed package either way.
+     */
+    private void reclaimAndRetry(final InstallJob job) {
+        job.reclaimAttempted = true;
+        job.sessionInstaller = null;
+        CacheReclaimer.reclaim(this, job.requiredFreeBytes, new CacheReclaimer.Callback() {
+            @Override
+            public void onReclaimFinished(long reclaimedBytes, long durationMillis) {
+                final boolean retry = reclaimedBytes > 0;
+                job.analytics.setStorageReclaimed(reclaimedBytes, durationMillis, retry);
+                if (retry) {
+                    Log.i(TAG, "Reclaimed " + reclaimedBytes + " bytes; retrying install of "
+                            + job.appInfo.packageName);
+                    startJob(job);
+                } else {
+                    onJobFinished(job, PackageManager.INSTALL_FAILED_INSUFFICIENT_STORAGE);
+                }
+            }
+        });
+    }
+
+    private void stopIfIdle() {
+        if (mRunningJobs == 0 && mPendingJobs.isEmpty()) {
+            // Activities still bound to the service keep it, and its unreported results, alive.
+            stopSelf(mLastStartId);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Expected on-disk footprint of a package once installed, estimated from the zip central
+ * directory of its APK without reading any entry:
+ * <ul>
+ * <li>the APK itself, which the package manager copies;
+ * <li>the native libraries for the primary ABI, which it extracts uncompressed;
+ * <li>the output of dex optimization, which it writes to internal storage even for packages
+ * installed on external storage.
+ * </ul>
+ */
+final class InstallSizeEstimate {
+    private static final String TAG = "InstallSizeEstimate";
+
+    private static final String LIB_PREFIX = "lib/";
+    private static final String LIB_SUFFIX = ".so";
+    private static final String DEX_PREFIX = "classes";
+    private static final String DEX_SUFFIX = ".dex";
+
+    /**
+     * Ratio of the size of the OAT file compiled from dex code to the size of that code.
+     * Compiled code is typically two to four times larger than the dex it comes from.
+     */
+    private static final int OAT_SIZE_FACTOR = 3;
+
+    final long apkBytes;
+    final long nativeLibraryBytes;
+    final long dexOptBytes;
+
+    InstallSizeEstimate(long apkBytes, long nativeLibraryBytes, long dexOptBytes) {
+        this.apkBytes = apkBytes;
+        this.nativeLibraryBytes = nativeLibraryBytes;
+        this.dexOptBytes = dexOptBytes;
+    }
+
+    /**
+     * Returns the bytes written to the volume holding the package's code.
+     */
+    long getCodeBytes() {
+        return apkBytes + nativeLibraryBytes;
+    }
+
+    long getTotalBytes() {
+        return apkBytes + nativeLibraryBytes + dexOptBytes;
+    }
+
+    /**
+     * Estimates the footprint of the specified APK from its shared mapping, or from its length
+     * alone if it cannot be mapped.
+     */
+    static InstallSizeEstimate estimate(File apkFile) {
+        final MappedApk apk;
+        try {
+            apk = PackageUtil.getMappedApk(apkFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map " + apkFile, e);
+            return new InstallSizeEstimate(apkFile.length(), 0, 0);
+        }
+        try {
+            return estimate(apk);
+        } finally {
+            apk.close();
+        }
+    }
+
+    /**
+     * Estimates the footprint of the specified APK. Native libraries are counted for the first of
+     * {@link Build#SUPPORTED_ABIS} the APK has libraries for, which is the ABI the package manager
+     * picks.
+     */
+    static InstallSizeEstimate estimate(MappedApk apk) {
+        final HashMap<String, Long> libraryBytesByAbi = new HashMap<String, Long>();
+        long dexBytes = 0;
+        for (MappedApk.Entry entry : apk.getEntries()) {
+            final String name = entry.name;
+            if (name.startsWith(LIB_PREFIX) && name.endsWith(LIB_SUFFIX)) {
+                // Only lib/<abi>/<library>.so is extracted.
+                final int abiEnd = name.indexOf('/', LIB_PREFIX.length());
+                if (abiEnd < 0 || name.indexOf('/', abiEnd + 1) >= 0) {
+                    continue;
+                }
+                final String abi = name.substring(LIB_PREFIX.length(), abiEnd);
+                final Long bytes = libraryBytesByAbi.get(abi);
+                libraryBytesByAbi.put(abi, ((bytes != null) ? bytes : 0) + entry.size);
+            } else if (name.startsWith(DEX_PREFIX) && name.endsWith(DEX_SUFFIX)
+                    && name.indexOf('/') < 0) {
+                dexBytes += entry.size;
+            }
+        }
+
+        long nativeLibraryBytes = 0;
+        for (String abi : Build.SUPPORTED_ABIS) {
+            final Long bytes = libraryBytesByAbi.get(abi);
+            if (bytes != null) {
+                nativeLibraryBytes = bytes;
+                break;
+            }
+        }
+        return new InstallSizeEstimate(apk.getLength(), nativeLibraryBytes,
+                dexBytes * OAT_SIZE_FACTOR);
+    }
+}
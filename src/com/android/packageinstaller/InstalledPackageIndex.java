@@ -0,0 +1,255 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Index of the packages installed for the current user, including uninstalled packages whose data
+ * has been kept, so that flows looking up many packages, such as batch installs, don't fetch each
+ * of them over binder. The index may lag behind the package manager by a broadcast, so it is only
+ * a hint; a decision about a single package, such as whether an install replaces it, queries the
+ * package manager instead.
+ *
+ * <p>The index is built once per process with a single query and is then kept current from the
+ * {@link Intent#ACTION_PACKAGE_ADDED}, {@link Intent#ACTION_PACKAGE_REMOVED} and
+ * {@link Intent#ACTION_PACKAGE_REPLACED} broadcasts (and their external storage counterparts),
+ * each of which re-queries only the package concerned.
+ */
+final class InstalledPackageIndex {
+    private static final String TAG = "InstalledPackageIndex";
+
+    private static InstalledPackageIndex sInstance;
+
+    /**
+     * Compact description of an installed package.
+     */
+    static final class PackageRecord {
+        final String packageName;
+        final int versionCode;
+        /** {@code ApplicationInfo.flags} of the package. */
+        final int flags;
+        /**
+         * Digest of the package's signing certificates, or {@code null} if it has none. See
+         * {@link InstalledPackageIndex#getSigningDigest(byte[][])}.
+         */
+        final byte[] signingDigest;
+
+        PackageRecord(String packageName, int versionCode, int flags, byte[] signingDigest) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.flags = flags;
+            this.signingDigest = signingDigest;
+        }
+    }
+
+    private final PackageManager mPm;
+    private final HashMap<String, PackageRecord> mPackages = new HashMap<String, PackageRecord>();
+    /**
+     * Packages refreshed from a broadcast while the snapshot was being taken, whose records are
+     * newer than the snapshot's; {@code null} once the snapshot has been taken.
+     */
+    private HashSet<String> mRefreshedDuringSnapshot = new HashSet<String>();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packageNames =
+                        intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packageNames != null) {
+                    for (String packageName : packageNames) {
+                        refreshPackage(packageName);
+                    }
+                }
+                return;
+            }
+            final Uri data = intent.getData();
+            final String packageName = (data != null) ? data.getSchemeSpecificPart() : null;
+            if (packageName == null) {
+                return;
+            }
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(action)
+                    && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // The package is being updated; wait for the matching added broadcast.
+                return;
+            }
+            refreshPackage(packageName);
+        }
+    };
+
+    private InstalledPackageIndex(Context context) {
+        mPm = context.getPackageManager();
+
+        // Register before taking the snapshot so that no change is missed. Broadcasts are handled
+        // on a background thread, as each of them queries the package manager.
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper());
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(mReceiver, packageFilter, null, handler);
+        final IntentFilter externalFilter = new IntentFilter();
+        externalFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        externalFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mReceiver, externalFilter, null, handler);
+
+        final List<PackageInfo> packages = mPm.getInstalledPackages(
+                PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_SIGNATURES);
+        synchronized (this) {
+            for (int i = 0; i < packages.size(); i++) {
+                final PackageInfo info = packages.get(i);
+                if (!mRefreshedDuringSnapshot.contains(info.packageName)) {
+                    mPackages.put(info.packageName, toRecord(info));
+                }
+            }
+            mRefreshedDuringSnapshot = null;
+        }
+    }
+
+    /**
+     * Returns the index, building it if necessary. Building the index queries all packages, so
+     * this must not be called on the main thread.
+     */
+    static synchronized InstalledPackageIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new InstalledPackageIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the record of the specified package or {@code null} if it is not installed.
+     */
+    synchronized PackageRecord get(String packageName) {
+        return mPackages.get(packageName);
+    }
+
+    /**
+     * Returns the record of the package whose name equals the specified one ignoring case, or
+     * {@code null} if there is none.
+     */
+    synchronized PackageRecord getIgnoreCase(String packageName) {
+        final PackageRecord record = mPackages.get(packageName);
+        if (record != null) {
+            return record;
+        }
+        for (PackageRecord candidate : mPackages.values()) {
+            if (candidate.packageName.equalsIgnoreCase(packageName)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private void refreshPackage(String packageName) {
+        PackageInfo info = null;
+        try {
+            info = mPm.getPackageInfo(packageName,
+                    PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_SIGNATURES);
+        } catch (NameNotFoundException e) {
+        }
+        synchronized (this) {
+            if (mRefreshedDuringSnapshot != null) {
+                mRefreshedDuringSnapshot.add(packageName);
+            }
+            if (info != null) {
+                mPackages.put(packageName, toRecord(info));
+            } else {
+                mPackages.remove(packageName);
+            }
+        }
+    }
+
+    /**
+     * Returns the record of a package fetched with {@link PackageManager#GET_SIGNATURES}.
+     */
+    static PackageRecord toRecord(PackageInfo info) {
+        byte[] signingDigest = null;
+        if (info.signatures != null && info.signatures.length > 0) {
+            final byte[][] certificates = new byte[info.signatures.length][];
+            for (int i = 0; i < certificates.length; i++) {
+                certificates[i] = info.signatures[i].toByteArray();
+            }
+            signingDigest = getSigningDigest(certificates);
+        }
+        final int flags = (info.applicationInfo != null) ? info.applicationInfo.flags : 0;
+        return new PackageRecord(info.packageName, info.versionCode, flags, signingDigest);
+    }
+
+    /**
+     * Returns a digest identifying a set of encoded signing certificates. The digest does not
+     * depend on the order of the certificates, since the package manager compares signatures as
+     * sets.
+     */
+    static byte[] getSigningDigest(byte[][] encodedCertificates) {
+        final MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+        final byte[][] digests = new byte[encodedCertificates.length][];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = sha256.digest(encodedCertificates[i]);
+        }
+        Arrays.sort(digests, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] lhs, byte[] rhs) {
+                for (int i = 0; i < lhs.length && i < rhs.length; i++) {
+                    final int diff = (lhs[i] & 0xff) - (rhs[i] & 0xff);
+                    if (diff != 0) {
+                        return diff;
+                    }
+                }
+                return lhs.length - rhs.length;
+            }
+        });
+        byte[] previous = null;
+        for (byte[] digest : digests) {
+            // Duplicate certificates don't change the set.
+            if (!Arrays.equals(digest, previous)) {
+                sha256.update(digest);
+            }
+            previous = digest;
+        }
+        return sha256.digest();
+    }
+}
@@ -0,0 +1,418 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import libcore.io.IoUtils;
+
+/**
+ * Read-only, memory-mapped view of an APK, indexed by its zip central directory. A single
+ * instance per APK is shared through {@link PackageParseCache} by everything in the install flow
+ * that reads the APK's bytes, so that the file is read from storage once: the manifest digest is
+ * taken from the mapped {@code AndroidManifest.xml} entry and the SHA-256 digest of the whole file
+ * is computed by a single sequential pass over the mapping and remembered.
+ *
+ * <p>The {@link android.content.res.AssetManager} that loads the label and icon maps the same file
+ * and is therefore served from the page cache.
+ *
+ * <p>Each holder of an instance must {@link #close()} it when done; the file is unmapped once the
+ * last holder has.
+ */
+final class MappedApk implements Closeable {
+    static final String ANDROID_MANIFEST_FILENAME = "AndroidManifest.xml";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    /** Number of bytes fed to the digest at a time by the sequential pass. */
+    private static final int DIGEST_CHUNK_SIZE = 1024 * 1024;
+
+    /** Size of the leaves of the tree digest; see {@link #getSha256TreeDigest()}. */
+    static final int TREE_DIGEST_CHUNK_SIZE = 1024 * 1024;
+
+    private static final byte TREE_DIGEST_LEAF_PREFIX = 0x00;
+    private static final byte TREE_DIGEST_NODE_PREFIX = 0x01;
+
+    private static ForkJoinPool sDigestPool;
+
+    /**
+     * An entry of the zip central directory.
+     */
+    static final class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+    private final HashMap<String, Entry> mEntries;
+
+    private byte[] mSha256Digest;
+    private byte[] mSha256TreeDigest;
+
+    private final Object mReferenceLock = new Object();
+    private int mReferences = 1;
+
+    private MappedApk(File file, MappedByteBuffer buffer, HashMap<String, Entry> entries) {
+        mFile = file;
+        mBuffer = buffer;
+        mEntries = entries;
+    }
+
+    /**
+     * Maps the specified APK and indexes its central directory.
+     *
+     * @throws IOException if the file cannot be mapped or is not a zip file this class supports
+     */
+    static MappedApk open(File file) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Too large to map: " + file + " (" + length + " bytes)");
+            }
+            // The mapping stays valid after the channel is closed.
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedApk(file, buffer, readCentralDirectory(file, buffer));
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    private static HashMap<String, Entry> readCentralDirectory(File file, ByteBuffer buffer)
+            throws IOException {
+        final int eocd = findEndOfCentralDirectory(buffer);
+        if (eocd < 0) {
+            throw new IOException("Not a zip file: " + file);
+        }
+        final int entryCount = buffer.getShort(eocd + 10) & 0xffff;
+        final long cdSize = buffer.getInt(eocd + 12) & 0xffffffffL;
+        final long cdOffset = buffer.getInt(eocd + 16) & 0xffffffffL;
+        if (cdOffset + cdSize > eocd) {
+            throw new IOException("Bad central directory in " + file);
+        }
+
+        final HashMap<String, Entry> entries = new HashMap<String, Entry>(entryCount * 2);
+        int pos = (int) cdOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if ((long) pos + CENTRAL_DIRECTORY_HEADER_SIZE > eocd
+                    || buffer.getInt(pos) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException("Bad central directory entry " + i + " in " + file);
+            }
+            final int method = buffer.getShort(pos + 10) & 0xffff;
+            final long compressedSize = buffer.getInt(pos + 20) & 0xffffffffL;
+            final long size = buffer.getInt(pos + 24) & 0xffffffffL;
+            final int nameLength = buffer.getShort(pos + 28) & 0xffff;
+            final int extraLength = buffer.getShort(pos + 30) & 0xffff;
+            final int commentLength = buffer.getShort(pos + 32) & 0xffff;
+            final long localHeaderOffset = buffer.getInt(pos + 42) & 0xffffffffL;
+            // Lengths and offsets are unchecked input; past the end they would throw unchecked
+            // exceptions, or wrap around once cast.
+            final long next = (long) pos + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength
+                    + extraLength + commentLength;
+            if (next > eocd) {
+                throw new IOException("Central directory entry " + i + " overruns " + file);
+            }
+            if (localHeaderOffset + LOCAL_HEADER_SIZE > cdOffset) {
+                throw new IOException("Bad local header offset of entry " + i + " in " + file);
+            }
+
+            final byte[] nameBytes = new byte[nameLength];
+            final ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(pos + CENTRAL_DIRECTORY_HEADER_SIZE);
+            nameBuffer.get(nameBytes);
+            final String name = new String(nameBytes, "UTF-8");
+            entries.put(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+
+            pos = (int) next;
+        }
+        return entries;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer buffer) {
+        final int limit = buffer.limit();
+        final int lowest = Math.max(0, limit - EOCD_MIN_SIZE - MAX_COMMENT_SIZE);
+        for (int pos = limit - EOCD_MIN_SIZE; pos >= lowest; pos--) {
+            if (buffer.getInt(pos) == EOCD_SIGNATURE) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a holder of this mapping, who must {@link #close()} it when done.
+     *
+     * @throws IllegalStateException if the file was already unmapped
+     */
+    MappedApk acquire() {
+        synchronized (mReferenceLock) {
+            if (mReferences == 0) {
+                throw new IllegalStateException("Already unmapped: " + mFile);
+            }
+            mReferences++;
+        }
+        return this;
+    }
+
+    /**
+     * Releases the caller's hold on this mapping and unmaps the file if it was the last one.
+     * Neither this instance nor the streams it opened may be used by the caller afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (mReferenceLock) {
+            if (mReferences == 0) {
+                return;
+            }
+            if (--mReferences > 0) {
+                return;
+            }
+        }
+        NioUtils.freeDirectBuffer(mBuffer);
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    long getLength() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Returns the entry with the specified name or {@code null} if there is none.
+     */
+    Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Returns all entries of the central directory.
+     */
+    Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(mEntries.values());
+    }
+
+    /**
+     * Opens a stream of the uncompressed contents of the specified entry, read from the mapping.
+     */
+    InputStream openEntry(Entry entry) throws IOException {
+        // The offset was checked against the central directory, which is within the mapping.
+        final int localHeader = (int) entry.localHeaderOffset;
+        if (mBuffer.getInt(localHeader) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad local header for " + entry.name + " in " + mFile);
+        }
+        final int nameLength = mBuffer.getShort(localHeader + 26) & 0xffff;
+        final int extraLength = mBuffer.getShort(localHeader + 28) & 0xffff;
+        final long dataOffset = localHeader + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        if (dataOffset + entry.compressedSize > mBuffer.capacity()) {
+            throw new IOException("Truncated entry " + entry.name + " in " + mFile);
+        }
+
+        final ByteBuffer data = mBuffer.duplicate();
+        data.position((int) dataOffset);
+        data.limit((int) (dataOffset + entry.compressedSize));
+        final InputStream in = new ByteBufferInputStream(data.slice());
+        switch (entry.method) {
+            case METHOD_STORED:
+                return in;
+            case METHOD_DEFLATED:
+                return new InflaterInputStream(in, new Inflater(true));
+            default:
+                throw new IOException("Unsupported compression method " + entry.method
+                        + " for " + entry.name + " in " + mFile);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 digest of the whole file. The digest is computed by the first call, in a
+     * single sequential pass over the mapping; later calls, including concurrent ones, wait for
+     * and return the same result.
+     */
+    synchronized byte[] getSha256Digest() {
+        if (mSha256Digest == null) {
+            final MessageDigest digest = newSha256();
+            final ByteBuffer data = mBuffer.duplicate();
+            data.position(0);
+            final int length = data.capacity();
+            for (int pos = 0; pos < length; pos += DIGEST_CHUNK_SIZE) {
+                data.limit(Math.min(length, pos + DIGEST_CHUNK_SIZE));
+                digest.update(data);
+            }
+            mSha256Digest = digest.digest();
+        }
+        return mSha256Digest.clone();
+    }
+
+    /**
+     * Returns the SHA-256 tree digest of the whole file. The file is split into
+     * {@link #TREE_DIGEST_CHUNK_SIZE} byte chunks which are hashed in parallel and combined into a
+     * single root digest the same way as the Merkle Tree Hash of RFC 6962: a leaf is
+     * {@code SHA-256(0x00 || chunk)}, and a node over {@code n > 1} chunks is
+     * {@code SHA-256(0x01 || left || right)} where the left subtree covers the largest power of
+     * two number of chunks smaller than {@code n}. An empty file is the leaf of an empty chunk.
+     *
+     * <p>Like {@link #getSha256Digest()}, the result is computed once and remembered.
+     */
+    synchronized byte[] getSha256TreeDigest() {
+        if (mSha256TreeDigest == null) {
+            final int length = mBuffer.capacity();
+            final int chunks = Math.max(1,
+                    (int) ((length + (long) TREE_DIGEST_CHUNK_SIZE - 1) / TREE_DIGEST_CHUNK_SIZE));
+            mSha256TreeDigest = getDigestPool().invoke(new TreeDigestTask(mBuffer, 0, chunks));
+        }
+        return mSha256TreeDigest.clone();
+    }
+
+    private static synchronized ForkJoinPool getDigestPool() {
+        if (sDigestPool == null) {
+            sDigestPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sDigestPool;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Computes the tree digest of the chunks {@code [first, end)} of a mapped file.
+     */
+    private static final class TreeDigestTask extends RecursiveTask<byte[]> {
+        private final ByteBuffer mData;
+        private final int mFirst;
+        private final int mEnd;
+
+        TreeDigestTask(ByteBuffer data, int first, int end) {
+            mData = data;
+            mFirst = first;
+            mEnd = end;
+        }
+
+        @Override
+        protected byte[] compute() {
+            final MessageDigest digest = newSha256();
+            final int count = mEnd - mFirst;
+            if (count == 1) {
+                final ByteBuffer chunk = mData.duplicate();
+                final long start = (long) mFirst * TREE_DIGEST_CHUNK_SIZE;
+                chunk.position((int) start);
+                chunk.limit((int) Math.min(chunk.capacity(), start + TREE_DIGEST_CHUNK_SIZE));
+                digest.update(TREE_DIGEST_LEAF_PREFIX);
+                digest.update(chunk);
+                return digest.digest();
+            }
+            final int split = Integer.highestOneBit(count - 1);
+            final TreeDigestTask left = new TreeDigestTask(mData, mFirst, mFirst + split);
+            final TreeDigestTask right = new TreeDigestTask(mData, mFirst + split, mEnd);
+            left.fork();
+            final byte[] rightDigest = right.compute();
+            final byte[] leftDigest = left.join();
+            digest.update(TREE_DIGEST_NODE_PREFIX);
+            digest.update(leftDigest);
+            digest.update(rightDigest);
+            return digest.digest();
+        }
+    }
+
+    /**
+     * {@link InputStream} over the remaining bytes of a {@link ByteBuffer}.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mData;
+
+        ByteBufferInputStream(ByteBuffer data) {
+            mData = data;
+        }
+
+        @Override
+        public int read() {
+            return mData.hasRemaining() ? (mData.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mData.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mData.remaining());
+            mData.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, mData.remaining()));
+            mData.position(mData.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mData.remaining();
+        }
+    }
+}
@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.app.ActivityManagerNative;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.admin.DevicePolicyManager;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
@@ -32,28 +33,37 @@ import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.PackageParserException;
 import android.content.pm.PackageUserState;
 import android.content.pm.ResolveInfo;
 import android.content.pm.VerificationParams;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.support.v4.view.ViewPager;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
-import android.view.ViewGroup;
 import android.widget.AppSecurityPermissions;
 import android.widget.Button;
+import android.widget.ProgressBar;
 import android.widget.TabHost;
 import android.widget.TextView;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.util.List;
 
+import libcore.io.IoUtils;
+
 /*
  * This activity is launched when a new application is installed via side loading
  * The package is first parsed and the user is notified of parse errors via a dialog.
@@ -84,20 +94,63 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
     // ApplicationInfo object primarily used for already existing applications
     private ApplicationInfo mAppInfo = null;
 
+    // Permissions of the package being installed, computed along with mPkgInfo
+    private AppSecurityPermissions mPerms;
+    // Rows of the list of all permissions of the package, computed along with mPkgInfo
+    private PermissionListAdapter.Rows mPermissionRows;
+
     private InstallFlowAnalytics mInstallFlowAnalytics;
 
+    // Background load of the package being installed; null once it has completed
+    private LoadPackageTask mLoadTask;
+    private boolean mRequestFromUnknownSource;
+    private boolean mUnknownSourcesAllowedByAdmin;
+    private boolean mUnknownSourcesAllowedByUser;
+
+    // Whether the APK is streamed into an install session while the user reviews the install
+    private boolean mPrestage;
+    // Descriptor the APK was parsed from when pre-staging, until it is handed to mStagedInstaller
+    private ParcelFileDescriptor mPackageFd;
+    private PackageParseCache.Key mPackageIdentity;
+    private CharSequence mPackageLabel;
+    // Installer staging the APK; null once handed to InstallAppProgress or abandoned
+    private SessionInstaller mStagedInstaller;
+    // Whether the install was requested by device policy rather than by the user
+    private boolean mPolicyInstall;
+    // Where the package is installed; null if the package manager decides, e.g. for updates
+    private InstallLocationPolicy mLocationPolicy;
+    private InstallSizeEstimate mSizeEstimate;
+    private int mLocationFlags;
+    // Bytes missing on the target volume for the package to be installed, or 0 if it fits
+    private long mStorageShortfallBytes;
+    // Whether app caches have been cleared to make up for mStorageShortfallBytes
+    private boolean mStorageReclaimAttempted;
+    // Error the package failed the compatibility checks with, shown by DLG_INCOMPATIBLE
+    private int mCompatibilityResult;
+
     // View for install progress
     View mInstallConfirm;
     // Buttons to indicate user acceptance
     private Button mOk;
     private Button mCancel;
-    CaffeinatedScrollView mScrollView = null;
+    FullScrollable mScrollView = null;
     private boolean mOkCanInstall = false;
+    // Frame times of the confirmation screen, sampled from the time it is shown until it is
+    // answered
+    private FrameTimeSampler mFrameTimeSampler;
 
     static final String PREFS_ALLOWED_SOURCES = "allowed_sources";
 
     private static final String PACKAGE_MIME_TYPE = "application/vnd.android.package-archive";
 
+    /**
+     * System property which, when true, makes the installer stream APKs into an install session
+     * as soon as they have been parsed, so that clicking Install only commits the session. This
+     * also routes file URIs through sessions, which attribute the install to this installer
+     * rather than to the originating app.
+     */
+    private static final String PROPERTY_PRESTAGE = "persist.pkginstaller.prestage";
+
     private static final String TAB_ID_ALL = "all";
     private static final String TAB_ID_NEW = "new";
 
@@ -109,6 +162,10 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
     private static final int DLG_INSTALL_ERROR = DLG_BASE + 4;
     private static final int DLG_ALLOW_SOURCE = DLG_BASE + 5;
     private static final int DLG_ADMIN_RESTRICTS_UNKNOWN_SOURCES = DLG_BASE + 6;
+    private static final int DLG_INSTALL_LOCATION = DLG_BASE + 7;
+    private static final int DLG_INCOMPATIBLE = DLG_BASE + 8;
+
+    private static final int MENU_INSTALL_LOCATION = Menu.FIRST;
 
     private void startInstallConfirm() {
         TabHost tabHost = (TabHost)findViewById(android.R.id.tabhost);
@@ -131,57 +188,53 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         mOkCanInstall = false;
         int msg = 0;
         if (mPkgInfo != null) {
-            AppSecurityPermissions perms = new AppSecurityPermissions(this, mPkgInfo);
-            final int NP = perms.getPermissionCount(AppSecurityPermissions.WHICH_PERSONAL);
-            final int ND = perms.getPermissionCount(AppSecurityPermissions.WHICH_DEVICE);
+            AppSecurityPermissions perms = mPerms;
+            final int NP = mPermissionRows.personalCount;
+            final int ND = mPermissionRows.deviceCount;
             if (mAppInfo != null) {
                 msg = (mAppInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0
                         ? R.string.install_confirm_question_update_system
                         : R.string.install_confirm_question_update;
-                mScrollView = new CaffeinatedScrollView(this);
-                mScrollView.setFillViewport(true);
+                CaffeinatedScrollView scrollView = new CaffeinatedScrollView(this);
+                scrollView.setFillViewport(true);
                 boolean newPermissionsFound =
                         (perms.getPermissionCount(AppSecurityPermissions.WHICH_NEW) > 0);
                 mInstallFlowAnalytics.setNewPermissionsFound(newPermissionsFound);
                 if (newPermissionsFound) {
                     permVisible = true;
-                    mScrollView.addView(perms.getPermissionsView(
+                    scrollView.addView(perms.getPermissionsView(
                             AppSecurityPermissions.WHICH_NEW));
                 } else {
                     LayoutInflater inflater = (LayoutInflater)getSystemService(
                             Context.LAYOUT_INFLATER_SERVICE);
                     TextView label = (TextView)inflater.inflate(R.layout.label, null);
                     label.setText(R.string.no_new_perms);
-                    mScrollView.addView(label);
+                    scrollView.addView(label);
                 }
                 adapter.addTab(tabHost.newTabSpec(TAB_ID_NEW).setIndicator(
-                        getText(R.string.newPerms)), mScrollView);
+                        getText(R.string.newPerms)), scrollView);
+                mScrollView = scrollView;
             } else  {
                 findViewById(R.id.tabscontainer).setVisibility(View.GONE);
                 findViewById(R.id.divider).setVisibility(View.VISIBLE);
             }
             if (NP > 0 || ND > 0) {
                 permVisible = true;
-                LayoutInflater inflater = (LayoutInflater)getSystemService(
-                        Context.LAYOUT_INFLATER_SERVICE);
-                View root = inflater.inflate(R.layout.permissions_list, null);
                 if (mScrollView == null) {
-                    mScrollView = (CaffeinatedScrollView)root.findViewById(R.id.scrollview);
-                }
-                if (NP > 0) {
-                    ((ViewGroup)root.findViewById(R.id.privacylist)).addView(
-                            perms.getPermissionsView(AppSecurityPermissions.WHICH_PERSONAL));
+                    // This is the only tab, and the install button waits for it to be scrolled.
+                    PermissionListView list = createPermissionList();
+                    mScrollView = list;
+                    adapter.addTab(tabHost.newTabSpec(TAB_ID_ALL).setIndicator(
+                            getText(R.string.allPerms)), list);
                 } else {
-                    root.findViewById(R.id.privacylist).setVisibility(View.GONE);
-                }
-                if (ND > 0) {
-                    ((ViewGroup)root.findViewById(R.id.devicelist)).addView(
-                            perms.getPermissionsView(AppSecurityPermissions.WHICH_DEVICE));
-                } else {
-                    root.findViewById(R.id.devicelist).setVisibility(View.GONE);
+                    adapter.addTab(tabHost.newTabSpec(TAB_ID_ALL).setIndicator(
+                            getText(R.string.allPerms)), new TabsAdapter.PageFactory() {
+                        @Override
+                        public View createPage() {
+                            return createPermissionList();
+                        }
+                    });
                 }
-                adapter.addTab(tabHost.newTabSpec(TAB_ID_ALL).setIndicator(
-                        getText(R.string.allPerms)), root);
             }
         }
         mInstallFlowAnalytics.setPermissionsDisplayed(permVisible);
@@ -207,6 +260,12 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
             ((TextView)findViewById(R.id.install_confirm_question)).setText(msg);
         }
         mInstallConfirm.setVisibility(View.VISIBLE);
+        if (FrameTimeSampler.isEnabled()) {
+            if (mFrameTimeSampler == null) {
+                mFrameTimeSampler = new FrameTimeSampler(this);
+            }
+            mFrameTimeSampler.start();
+        }
         mOk = (Button)findViewById(R.id.ok_button);
         mCancel = (Button)findViewById(R.id.cancel_button);
         mOk.setOnClickListener(this);
@@ -227,6 +286,18 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         }
     }
 
+    /**
+     * Inflates the list of all permissions, split between personal and device permissions.
+     */
+    private PermissionListView createPermissionList() {
+        LayoutInflater inflater = (LayoutInflater)getSystemService(
+                Context.LAYOUT_INFLATER_SERVICE);
+        PermissionListView list =
+                (PermissionListView)inflater.inflate(R.layout.permissions_list, null);
+        list.setAdapter(new PermissionListAdapter(this, mPermissionRows));
+        return list;
+    }
+
     private void showDialogInner(int id) {
         // TODO better fix for this? Remove dialog so that it gets created again
         removeDialog(id);
@@ -300,6 +371,17 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
                   })
                   .setOnCancelListener(this)
                   .create();
+        case DLG_INCOMPATIBLE:
+            return new AlertDialog.Builder(this)
+                    .setTitle(R.string.install_failed)
+                    .setMessage(PackageUtil.getInstallFailureExplanation(mCompatibilityResult))
+                    .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            finish();
+                        }
+                    })
+                    .setOnCancelListener(this)
+                    .create();
         case DLG_INSTALL_ERROR :
             // Guaranteed not to be null. will default to package name if not set by app
             CharSequence appTitle1 = mPm.getApplicationLabel(mPkgInfo.applicationInfo);
@@ -337,10 +419,63 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
                     })
                     .setOnCancelListener(this)
                     .create();
+        case DLG_INSTALL_LOCATION:
+            return new AlertDialog.Builder(this)
+                    .setTitle(R.string.app_install_location_title)
+                    .setSingleChoiceItems(R.array.app_install_location_entries,
+                            mLocationPolicy.getDefaultLocation(),
+                            new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            setInstallLocation(which);
+                            dialog.dismiss();
+                        }
+                    })
+                    .create();
        }
        return null;
    }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_INSTALL_LOCATION, Menu.NONE,
+                R.string.app_install_location_title);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // Only offered once the package has been placed.
+        menu.findItem(MENU_INSTALL_LOCATION).setVisible(mLocationPolicy != null);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == MENU_INSTALL_LOCATION) {
+            showDialogInner(DLG_INSTALL_LOCATION);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Remembers the install location chosen by the user and places the package accordingly.
+     */
+    private void setInstallLocation(int location) {
+        Settings.Global.putInt(getContentResolver(), Settings.Global.DEFAULT_INSTALL_LOCATION,
+                location);
+        mLocationPolicy.setDefaultLocation(location);
+        final int locationFlags = mLocationPolicy.getInstallFlags(
+                mPkgInfo.applicationInfo.installLocation, mSizeEstimate, mAppInfo != null);
+        if (locationFlags != mLocationFlags && mStagedInstaller != null) {
+            // The session was created on the previous location; install without pre-staging.
+            abandonStagedInstall();
+        }
+        mLocationFlags = locationFlags;
+        mStorageShortfallBytes = mLocationPolicy.getShortfallBytes(
+                InstallLocationPolicy.isExternal(mLocationFlags, mAppInfo), mSizeEstimate);
+    }
+
     private void launchSettingsAppAndFinish() {
         // Create an intent to launch SettingsTwo activity
         Intent launchSettingsIntent = new Intent(Settings.ACTION_SECURITY_SETTINGS);
@@ -349,6 +484,30 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         finish();
     }
 
+    /**
+     * Returns whether the install was requested by a device or profile owner, or by another
+     * active device admin, rather than by the user through an app. Queries the package manager
+     * and device policy manager, so must be called off the main thread.
+     */
+    private boolean isPolicyInstallRequest() {
+        if (mOriginatingUid == VerificationParams.NO_UID) {
+            return false;
+        }
+        final String[] packages = mPm.getPackagesForUid(mOriginatingUid);
+        if (packages == null) {
+            return false;
+        }
+        final DevicePolicyManager dpm =
+                (DevicePolicyManager) getSystemService(Context.DEVICE_POLICY_SERVICE);
+        for (String packageName : packages) {
+            if (dpm.isDeviceOwnerApp(packageName) || dpm.isProfileOwnerApp(packageName)
+                    || dpm.packageHasActiveAdmins(packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean isInstallRequestFromUnknownSource(Intent intent) {
         String callerPackage = getCallingPackage();
         if (callerPackage != null && intent.getBooleanExtra(
@@ -401,34 +560,287 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
     }
 
     private void initiateInstall() {
-        String pkgName = mPkgInfo.packageName;
+        mInstallFlowAnalytics.setReplace(mAppInfo != null);
+        mInstallFlowAnalytics.setSystemApp(
+                (mAppInfo != null) && ((mAppInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0));
+
+        if (mStorageShortfallBytes > 0) {
+            if (!mStorageReclaimAttempted
+                    && !InstallLocationPolicy.isExternal(mLocationFlags, mAppInfo)) {
+                // Clear app caches, then check again.
+                mStorageReclaimAttempted = true;
+                reclaimStorage();
+                return;
+            }
+            // Fail before copying anything rather than after the package manager has tried.
+            Log.w(TAG, "Not enough space to install " + mPkgInfo.packageName + "; "
+                    + mStorageShortfallBytes + " more bytes needed");
+            abandonStagedInstall();
+            showDialogInner(DLG_OUT_OF_SPACE);
+            setPmResult(PackageManager.INSTALL_FAILED_INSUFFICIENT_STORAGE);
+            mInstallFlowAnalytics.setFlowFinished(
+                    InstallFlowAnalytics.RESULT_FAILED_INSUFFICIENT_STORAGE);
+            return;
+        }
+
+        if (mPackageFd != null) {
+            startStaging();
+        }
+        startInstallConfirm();
+    }
+
+    /**
+     * Clears app caches to make room for the package on internal storage, then carries on with
+     * the install if that made up for the shortfall.
+     */
+    private void reclaimStorage() {
+        CacheReclaimer.reclaim(this,
+                mLocationPolicy.getRequiredInternalFreeBytes(false, mSizeEstimate),
+                new CacheReclaimer.Callback() {
+            @Override
+            public void onReclaimFinished(long reclaimedBytes, long durationMillis) {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                mStorageShortfallBytes = Math.max(0, mStorageShortfallBytes - reclaimedBytes);
+                mInstallFlowAnalytics.setStorageReclaimed(reclaimedBytes, durationMillis,
+                        mStorageShortfallBytes == 0);
+                initiateInstall();
+            }
+        });
+    }
+
+    /**
+     * Starts streaming the APK into an install session while the user reviews the install. The
+     * session is streamed from the descriptor the APK was parsed from, and fails to stage if the
+     * file has changed since or the staged APK is not the package which was parsed.
+     */
+    private void startStaging() {
+        final PackageInstaller.SessionParams params = SessionInstaller.createSessionParams(
+                mPkgInfo.applicationInfo, mPackageLabel, mPackageFd.getStatSize(),
+                mLocationFlags, mOriginatingURI, mReferrerURI);
+        mStagedInstaller = new SessionInstaller(this, mPackageFd, params, null);
+        mPackageFd = null;
+        // The identity can't be taken of files which can't be stat'ed by path, e.g. in the
+        // private directory of a provider, so the staged APK is also checked against the package
+        // which was parsed; staging fails if neither can be checked.
+        mStagedInstaller.setExpectedIdentity(mPackageIdentity);
+        mStagedInstaller.setExpectedPackage(mPkgInfo.packageName, mPkgDigest);
+        mStagedInstaller.stage();
+    }
+
+    /**
+     * Discards the APK staged for install, if any, and frees its bytes.
+     */
+    private void abandonStagedInstall() {
+        if (mStagedInstaller != null) {
+            mStagedInstaller.abandon();
+            mStagedInstaller = null;
+        }
+        IoUtils.closeQuietly(mPackageFd);
+        mPackageFd = null;
+    }
+
+    /**
+     * Everything the confirmation screen needs about the package being installed. Produced by
+     * {@link LoadPackageTask} on a worker thread and bound on the main thread.
+     */
+    private static class LoadResult {
+        PackageInfo pkgInfo;
+        ManifestDigest pkgDigest;
+        PackageUtil.AppSnippet snippet;
+        AppSecurityPermissions perms;
+        PermissionListAdapter.Rows permissionRows;
+        ApplicationInfo installedAppInfo;
+        long packageInfoObtainedMillis;
+        boolean policyInstall;
+        // Placement of the package; see InstallLocationPolicy
+        InstallLocationPolicy locationPolicy;
+        InstallSizeEstimate sizeEstimate;
+        int locationFlags;
+        long storageShortfallBytes;
+        // Error the package manager is bound to fail the install with; see CompatibilityCheck
+        int compatibilityResult = PackageManager.INSTALL_SUCCEEDED;
+        // Descriptor the APK was parsed from, kept open for pre-staging, and its identity
+        ParcelFileDescriptor packageFd;
+        PackageParseCache.Key packageIdentity;
+    }
+
+    /**
+     * Parses the package, loads its label and icon and computes its permissions off the main
+     * thread, so that large APKs on slow storage do not hold up the first frame.
+     */
+    private class LoadPackageTask extends AsyncTask<Void, Void, LoadResult> {
+        @Override
+        protected LoadResult doInBackground(Void... params) {
+            return loadPackage();
+        }
+
+        @Override
+        protected void onPostExecute(LoadResult result) {
+            mLoadTask = null;
+            if (!isFinishing() && !isDestroyed()) {
+                onPackageLoaded(result);
+            } else {
+                IoUtils.closeQuietly(result.packageFd);
+            }
+        }
+
+        @Override
+        protected void onCancelled(LoadResult result) {
+            if (result != null) {
+                IoUtils.closeQuietly(result.packageFd);
+            }
+        }
+    }
+
+    /**
+     * Obtains the information about the package being installed. Runs on a worker thread and
+     * must not modify any state of the activity.
+     */
+    private LoadResult loadPackage() {
+        final LoadResult result = new LoadResult();
+        CompatibilityCheck compatibility = null;
+        if ("package".equals(mPackageURI.getScheme())) {
+            try {
+                result.pkgInfo = mPm.getPackageInfo(mPackageURI.getSchemeSpecificPart(),
+                        PackageManager.GET_PERMISSIONS | PackageManager.GET_UNINSTALLED_PACKAGES);
+            } catch (NameNotFoundException e) {
+            }
+            result.packageInfoObtainedMillis = SystemClock.elapsedRealtime();
+            if (result.pkgInfo == null) {
+                return result;
+            }
+            result.snippet = new PackageUtil.AppSnippet(
+                    mPm.getApplicationLabel(result.pkgInfo.applicationInfo),
+                    mPm.getApplicationIcon(result.pkgInfo.applicationInfo));
+        } else {
+            ParcelFileDescriptor fd = null;
+            try {
+                final File sourceFile;
+                if ("content".equals(mPackageURI.getScheme()) || mPrestage) {
+                    // The parsers need a path, so read the APK through an open descriptor.
+                    // Unless pre-staging, nothing below refers to the path once the snippet has
+                    // been loaded.
+                    try {
+                        if ("content".equals(mPackageURI.getScheme())) {
+                            fd = getContentResolver().openFileDescriptor(mPackageURI, "r");
+                        } else {
+                            fd = ParcelFileDescriptor.open(new File(mPackageURI.getPath()),
+                                    ParcelFileDescriptor.MODE_READ_ONLY);
+                        }
+                    } catch (FileNotFoundException e) {
+                        Log.w(TAG, "Failed to open " + mPackageURI, e);
+                    }
+                    if (fd == null) {
+                        result.packageInfoObtainedMillis = SystemClock.elapsedRealtime();
+                        return result;
+                    }
+                    sourceFile = PackageUtil.getFileForDescriptor(fd);
+                } else {
+                    sourceFile = new File(mPackageURI.getPath());
+                }
+                // Only the manifest is needed to confirm; the package manager parses the
+                // rest of the package when it is installed.
+                PackageParser.Package parsed;
+                try {
+                    parsed = PackageUtil.parsePackageLite(sourceFile);
+                } catch (PackageParserException e) {
+                    Log.w(TAG, "Failed to parse " + mPackageURI, e);
+                    if (e.error == PackageManager.INSTALL_FAILED_OLDER_SDK) {
+                        result.compatibilityResult = e.error;
+                    }
+                    parsed = null;
+                }
+                result.packageInfoObtainedMillis = SystemClock.elapsedRealtime();
+                if (parsed == null) {
+                    return result;
+                }
+                result.pkgInfo = PackageParser.generatePackageInfo(parsed, null,
+                        PackageManager.GET_PERMISSIONS, 0, 0, null,
+                        new PackageUserState());
+                result.pkgDigest = parsed.manifestDigest;
+                // Estimated from the central directory, which the parse has already mapped.
+                result.sizeEstimate = InstallSizeEstimate.estimate(sourceFile);
+                compatibility = CompatibilityCheck.inspect(sourceFile);
+                result.snippet = PackageUtil.getAppSnippet(this, result.pkgInfo.applicationInfo,
+                        sourceFile);
+                if (mPrestage) {
+                    // Stage exactly the file which was parsed.
+                    result.packageIdentity = PackageParseCache.Key.forFile(sourceFile);
+                    result.packageFd = fd;
+                    fd = null;
+                }
+            } finally {
+                IoUtils.closeQuietly(fd);
+            }
+        }
+
+        String pkgName = result.pkgInfo.packageName;
         // Check if there is already a package on the device with this name
         // but it has been renamed to something else.
         String[] oldName = mPm.canonicalToCurrentPackageNames(new String[] { pkgName });
         if (oldName != null && oldName.length > 0 && oldName[0] != null) {
             pkgName = oldName[0];
-            mPkgInfo.packageName = pkgName;
-            mPkgInfo.applicationInfo.packageName = pkgName;
+            // The application info may be shared with the cached parse result; don't modify it.
+            result.pkgInfo.applicationInfo = new ApplicationInfo(result.pkgInfo.applicationInfo);
+            result.pkgInfo.packageName = pkgName;
+            result.pkgInfo.applicationInfo.packageName = pkgName;
         }
         // Check if package is already installed. display confirmation dialog if replacing pkg
+        // This is a little convoluted because we want to get all uninstalled
+        // apps, but this may include apps with just data, and if it is just
+        // data we still want to count it as "installed".
+        // A single lookup covers the replaced package's signatures and permissions, rather than
+        // building the index of all installed packages for one of them.
+        PackageInfo installedPkgInfo = null;
         try {
-            // This is a little convoluted because we want to get all uninstalled
-            // apps, but this may include apps with just data, and if it is just
-            // data we still want to count it as "installed".
-            mAppInfo = mPm.getApplicationInfo(pkgName,
-                    PackageManager.GET_UNINSTALLED_PACKAGES);
-            if ((mAppInfo.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
-                mAppInfo = null;
-            }
+            installedPkgInfo = mPm.getPackageInfo(pkgName, PackageManager.GET_UNINSTALLED_PACKAGES
+                    | PackageManager.GET_SIGNATURES | PackageManager.GET_PERMISSIONS);
         } catch (NameNotFoundException e) {
-            mAppInfo = null;
+        }
+        if (installedPkgInfo != null && installedPkgInfo.applicationInfo != null
+                && (installedPkgInfo.applicationInfo.flags & ApplicationInfo.FLAG_INSTALLED) != 0) {
+            result.installedAppInfo = installedPkgInfo.applicationInfo;
+        } else {
+            installedPkgInfo = null;
         }
 
-        mInstallFlowAnalytics.setReplace(mAppInfo != null);
-        mInstallFlowAnalytics.setSystemApp(
-                (mAppInfo != null) && ((mAppInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0));
+        if (compatibility != null) {
+            result.compatibilityResult = compatibility.check(result.pkgInfo,
+                    (installedPkgInfo != null)
+                            ? InstalledPackageIndex.toRecord(installedPkgInfo) : null);
+            if (result.compatibilityResult != PackageManager.INSTALL_SUCCEEDED) {
+                // Doomed; don't bother with the rest.
+                return result;
+            }
+        }
 
-        startInstallConfirm();
+        result.policyInstall = isPolicyInstallRequest();
+
+        if (mSessionId == -1 && !"package".equals(mPackageURI.getScheme())) {
+            result.locationPolicy = InstallLocationPolicy.measure(this);
+            result.locationFlags = result.locationPolicy.getInstallFlags(
+                    result.pkgInfo.applicationInfo.installLocation, result.sizeEstimate,
+                    result.installedAppInfo != null);
+            final boolean external = InstallLocationPolicy.isExternal(result.locationFlags,
+                    result.installedAppInfo);
+            result.storageShortfallBytes = result.locationPolicy.getShortfallBytes(external,
+                    result.sizeEstimate);
+            if (result.installedAppInfo != null) {
+                // An update goes to the volume of the package it replaces, whose code it frees.
+                // The estimate is a heuristic; rather than block an update the package manager
+                // may accept, credit that code and leave the final word to the package manager.
+                result.storageShortfallBytes = Math.max(0, result.storageShortfallBytes
+                        - InstallLocationPolicy.getCodeBytes(result.installedAppInfo));
+            }
+        }
+
+        // Only collects the permissions here; their views are inflated by startInstallConfirm.
+        result.perms = new AppSecurityPermissions(this, result.pkgInfo);
+        result.permissionRows = PermissionListAdapter.load(this,
+                PermissionInfoCache.getInstance(this), result.pkgInfo, installedPkgInfo);
+        return result;
     }
 
     void setPmResult(int pmResult) {
@@ -467,22 +879,23 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
             mReferrerURI = intent.getParcelableExtra(Intent.EXTRA_REFERRER);
         }
 
-        final boolean unknownSourcesAllowedByAdmin = isUnknownSourcesAllowedByAdmin();
-        final boolean unknownSourcesAllowedByUser = isUnknownSourcesEnabled();
+        mUnknownSourcesAllowedByAdmin = isUnknownSourcesAllowedByAdmin();
+        mUnknownSourcesAllowedByUser = isUnknownSourcesEnabled();
 
-        boolean requestFromUnknownSource = isInstallRequestFromUnknownSource(intent);
+        mRequestFromUnknownSource = isInstallRequestFromUnknownSource(intent);
         mInstallFlowAnalytics = new InstallFlowAnalytics();
         mInstallFlowAnalytics.setContext(this);
         mInstallFlowAnalytics.setStartTimestampMillis(SystemClock.elapsedRealtime());
-        mInstallFlowAnalytics.setInstallsFromUnknownSourcesPermitted(unknownSourcesAllowedByAdmin
-                && unknownSourcesAllowedByUser);
-        mInstallFlowAnalytics.setInstallRequestFromUnknownSource(requestFromUnknownSource);
+        mInstallFlowAnalytics.setInstallsFromUnknownSourcesPermitted(mUnknownSourcesAllowedByAdmin
+                && mUnknownSourcesAllowedByUser);
+        mInstallFlowAnalytics.setInstallRequestFromUnknownSource(mRequestFromUnknownSource);
         mInstallFlowAnalytics.setVerifyAppsEnabled(isVerifyAppsEnabled());
         mInstallFlowAnalytics.setAppVerifierInstalled(isAppVerifierInstalled());
         mInstallFlowAnalytics.setPackageUri(mPackageURI.toString());
 
         final String scheme = mPackageURI.getScheme();
-        if (scheme != null && !"file".equals(scheme) && !"package".equals(scheme)) {
+        if (scheme != null && !"file".equals(scheme) && !"package".equals(scheme)
+                && !"content".equals(scheme)) {
             Log.w(TAG, "Unsupported scheme " + scheme);
             setPmResult(PackageManager.INSTALL_FAILED_INVALID_URI);
             mInstallFlowAnalytics.setFlowFinished(
@@ -490,60 +903,72 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
             finish();
             return;
         }
+        mInstallFlowAnalytics.setFileUri(!"package".equals(scheme));
+        mPrestage = mSessionId == -1 && !"package".equals(scheme)
+                && SystemProperties.getBoolean(PROPERTY_PRESTAGE, false);
 
-        final PackageUtil.AppSnippet as;
-        if ("package".equals(mPackageURI.getScheme())) {
-            mInstallFlowAnalytics.setFileUri(false);
-            try {
-                mPkgInfo = mPm.getPackageInfo(mPackageURI.getSchemeSpecificPart(),
-                        PackageManager.GET_PERMISSIONS | PackageManager.GET_UNINSTALLED_PACKAGES);
-            } catch (NameNotFoundException e) {
-            }
-            if (mPkgInfo == null) {
+        //set view; the app snippet is filled in once the package has been loaded
+        setContentView(R.layout.install_start);
+        mInstallConfirm = findViewById(R.id.install_confirm_panel);
+        mInstallConfirm.setVisibility(View.INVISIBLE);
+        ((ProgressBar) findViewById(R.id.progress_bar)).setIndeterminate(true);
+
+        mOriginatingUid = getOriginatingUid(intent);
+
+        mLoadTask = new LoadPackageTask();
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onPackageLoaded(LoadResult result) {
+        mInstallFlowAnalytics.setPackageInfoObtained(result.packageInfoObtainedMillis);
+        if (result.compatibilityResult != PackageManager.INSTALL_SUCCEEDED) {
+            // Fail before copying anything rather than after the package manager has tried.
+            Log.w(TAG, "Package cannot be installed on this device: "
+                    + result.compatibilityResult + ". Discontinuing installation");
+            IoUtils.closeQuietly(result.packageFd);
+            mCompatibilityResult = result.compatibilityResult;
+            showDialogInner(DLG_INCOMPATIBLE);
+            setPmResult(result.compatibilityResult);
+            mInstallFlowAnalytics.setFlowFinishedIncompatible(result.compatibilityResult);
+            return;
+        }
+        if (result.pkgInfo == null) {
+            if ("package".equals(mPackageURI.getScheme())) {
                 Log.w(TAG, "Requested package " + mPackageURI.getScheme()
                         + " not available. Discontinuing installation");
                 showDialogInner(DLG_PACKAGE_ERROR);
                 setPmResult(PackageManager.INSTALL_FAILED_INVALID_APK);
-                mInstallFlowAnalytics.setPackageInfoObtained();
                 mInstallFlowAnalytics.setFlowFinished(
                         InstallFlowAnalytics.RESULT_FAILED_PACKAGE_MISSING);
-                return;
-            }
-            as = new PackageUtil.AppSnippet(mPm.getApplicationLabel(mPkgInfo.applicationInfo),
-                    mPm.getApplicationIcon(mPkgInfo.applicationInfo));
-        } else {
-            mInstallFlowAnalytics.setFileUri(true);
-            final File sourceFile = new File(mPackageURI.getPath());
-            PackageParser.Package parsed = PackageUtil.getPackageInfo(sourceFile);
-
-            // Check for parse errors
-            if (parsed == null) {
+            } else {
                 Log.w(TAG, "Parse error when parsing manifest. Discontinuing installation");
                 showDialogInner(DLG_PACKAGE_ERROR);
                 setPmResult(PackageManager.INSTALL_FAILED_INVALID_APK);
-                mInstallFlowAnalytics.setPackageInfoObtained();
                 mInstallFlowAnalytics.setFlowFinished(
                         InstallFlowAnalytics.RESULT_FAILED_TO_GET_PACKAGE_INFO);
-                return;
             }
-            mPkgInfo = PackageParser.generatePackageInfo(parsed, null,
-                    PackageManager.GET_PERMISSIONS, 0, 0, null,
-                    new PackageUserState());
-            mPkgDigest = parsed.manifestDigest;
-            as = PackageUtil.getAppSnippet(this, mPkgInfo.applicationInfo, sourceFile);
+            return;
         }
-        mInstallFlowAnalytics.setPackageInfoObtained();
+        mPkgInfo = result.pkgInfo;
+        mPkgDigest = result.pkgDigest;
+        mPerms = result.perms;
+        mPermissionRows = result.permissionRows;
+        mAppInfo = result.installedAppInfo;
+        mPackageFd = result.packageFd;
+        mPackageIdentity = result.packageIdentity;
+        mPackageLabel = result.snippet.label;
+        mPolicyInstall = result.policyInstall;
+        mLocationPolicy = result.locationPolicy;
+        mSizeEstimate = result.sizeEstimate;
+        mLocationFlags = result.locationFlags;
+        mStorageShortfallBytes = result.storageShortfallBytes;
+        invalidateOptionsMenu();
 
-        //set view
-        setContentView(R.layout.install_start);
-        mInstallConfirm = findViewById(R.id.install_confirm_panel);
-        mInstallConfirm.setVisibility(View.INVISIBLE);
-        PackageUtil.initSnippetForNewApp(this, as, R.id.app_snippet);
-
-        mOriginatingUid = getOriginatingUid(intent);
+        ((ProgressBar) findViewById(R.id.progress_bar)).setIndeterminate(false);
+        PackageUtil.initSnippetForNewApp(this, result.snippet, R.id.app_snippet);
 
         // Block the install attempt on the Unknown Sources setting if necessary.
-        if (!requestFromUnknownSource) {
+        if (!mRequestFromUnknownSource) {
             initiateInstall();
             return;
         }
@@ -551,12 +976,12 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         // If the admin prohibits it, or we're running in a managed profile, just show error
         // and exit. Otherwise show an option to take the user to Settings to change the setting.
         final boolean isManagedProfile = mUserManager.isManagedProfile();
-        if (!unknownSourcesAllowedByAdmin
-                || (!unknownSourcesAllowedByUser && isManagedProfile)) {
+        if (!mUnknownSourcesAllowedByAdmin
+                || (!mUnknownSourcesAllowedByUser && isManagedProfile)) {
             showDialogInner(DLG_ADMIN_RESTRICTS_UNKNOWN_SOURCES);
             mInstallFlowAnalytics.setFlowFinished(
                     InstallFlowAnalytics.RESULT_BLOCKED_BY_UNKNOWN_SOURCES_SETTING);
-        } else if (!unknownSourcesAllowedByUser) {
+        } else if (!mUnknownSourcesAllowedByUser) {
             // Ask user to enable setting first
             showDialogInner(DLG_UNKNOWN_SOURCES);
             mInstallFlowAnalytics.setFlowFinished(
@@ -566,6 +991,48 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (mFrameTimeSampler != null) {
+            // Only created once the confirmation screen is shown.
+            mFrameTimeSampler.start();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mFrameTimeSampler != null) {
+            mFrameTimeSampler.stop();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
+        if (mFrameTimeSampler != null) {
+            mFrameTimeSampler.stop();
+        }
+        abandonStagedInstall();
+    }
+
+    /**
+     * Stops sampling the frame times of the confirmation screen, and records them for the
+     * analytics of the install flow.
+     */
+    private void finishFrameTimeSampling() {
+        if (mFrameTimeSampler != null) {
+            mFrameTimeSampler.stop();
+            mInstallFlowAnalytics.setConfirmFrameTimes(mFrameTimeSampler);
+            mFrameTimeSampler = null;
+        }
+    }
+
     /** Get the ApplicationInfo for the calling package, if available */
     private ApplicationInfo getSourceInfo() {
         String callingPackage = getCallingPackage();
@@ -642,6 +1109,8 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         if (mSessionId != -1) {
             mInstaller.setPermissionsResult(mSessionId, false);
         }
+        abandonStagedInstall();
+        finishFrameTimeSampling();
         mInstallFlowAnalytics.setFlowFinished(
                 InstallFlowAnalytics.RESULT_CANCELLED_BY_USER);
         super.onBackPressed();
@@ -656,6 +1125,7 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         if (v == mOk) {
             if (mOkCanInstall || mScrollView == null) {
                 mInstallFlowAnalytics.setInstallButtonClicked();
+                finishFrameTimeSampling();
                 if (mSessionId != -1) {
                     mInstaller.setPermissionsResult(mSessionId, true);
 
@@ -665,12 +1135,29 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
                             PackageManager.INSTALL_SUCCEEDED);
                 } else {
                     // Start subactivity to actually install the application
+                    mInstallFlowAnalytics.prefetchPackageContentsDigest();
                     Intent newIntent = new Intent();
                     newIntent.putExtra(PackageUtil.INTENT_ATTR_APPLICATION_INFO,
                             mPkgInfo.applicationInfo);
                     newIntent.setData(mPackageURI);
                     newIntent.setClass(this, InstallAppProgress.class);
                     newIntent.putExtra(InstallAppProgress.EXTRA_MANIFEST_DIGEST, mPkgDigest);
+                    newIntent.putExtra(InstallService.EXTRA_LABEL, mPackageLabel);
+                    newIntent.putExtra(InstallService.EXTRA_PRIORITY, mPolicyInstall
+                            ? InstallService.PRIORITY_POLICY : InstallService.PRIORITY_USER);
+                    newIntent.putExtra(InstallService.EXTRA_LOCATION_FLAGS, mLocationFlags);
+                    if (mLocationPolicy != null && !mStorageReclaimAttempted) {
+                        newIntent.putExtra(InstallService.EXTRA_REQUIRED_FREE_BYTES,
+                                mLocationPolicy.getRequiredInternalFreeBytes(
+                                        InstallLocationPolicy.isExternal(mLocationFlags,
+                                                mAppInfo),
+                                        mSizeEstimate));
+                    }
+                    if (mStagedInstaller != null) {
+                        newIntent.putExtra(InstallAppProgress.EXTRA_STAGED_INSTALL_TOKEN,
+                                mStagedInstaller.publish());
+                        mStagedInstaller = null;
+                    }
                     newIntent.putExtra(
                             InstallAppProgress.EXTRA_INSTALL_FLOW_ANALYTICS, mInstallFlowAnalytics);
                     String installerPackageName = getIntent().getStringExtra(
@@ -697,14 +1184,16 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
                 }
                 finish();
             } else {
-                mScrollView.pageScroll(View.FOCUS_DOWN);
+                mScrollView.pageDown();
             }
         } else if(v == mCancel) {
             // Cancel and finish
             setResult(RESULT_CANCELED);
+            abandonStagedInstall();
             if (mSessionId != -1) {
                 mInstaller.setPermissionsResult(mSessionId, false);
             }
+            finishFrameTimeSampling();
             mInstallFlowAnalytics.setFlowFinished(
                     InstallFlowAnalytics.RESULT_CANCELLED_BY_USER);
             finish();
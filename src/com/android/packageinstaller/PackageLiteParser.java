@@ -0,0 +1,294 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.pm.ManifestDigest;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.PackageParserException;
+import android.content.res.AssetManager;
+import android.content.res.XmlResourceParser;
+import android.os.Build;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.XmlUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import libcore.io.IoUtils;
+
+/**
+ * Parses only the manifest-level state of an APK: package name, version, label and icon resource
+ * IDs, requested permissions, the shared libraries it declares and uses, and the manifest digest.
+ * This is all the confirmation screen and {@link BatchInstallActivity} need,
+ * and unlike {@link PackageParser#parseMonolithicPackage} it neither builds the package's
+ * components nor loads its resource table. The package manager still performs the full parse
+ * when the package is installed; packages requiring a newer platform are rejected here too, so
+ * that they fail before anything is copied.
+ *
+ * <p>Attribute values are read raw from the binary XML, so references in attributes other than
+ * {@code label} and {@code icon} are not resolved.
+ */
+final class PackageLiteParser {
+    private static final String ANDROID_RESOURCES = "http://schemas.android.com/apk/res/android";
+
+    private static final String TAG_MANIFEST = "manifest";
+    private static final String TAG_APPLICATION = "application";
+    private static final String TAG_USES_SDK = "uses-sdk";
+    private static final String TAG_USES_PERMISSION = "uses-permission";
+    private static final String TAG_LIBRARY = "library";
+    private static final String TAG_USES_LIBRARY = "uses-library";
+
+    private PackageLiteParser() {}
+
+    /**
+     * Parses the manifest of the specified APK into a {@link PackageParser.Package} that has no
+     * components, suitable for {@link PackageParser#generatePackageInfo}.
+     */
+    static PackageParser.Package parsePackage(File apkFile) throws PackageParserException {
+        final String apkPath = apkFile.getAbsolutePath();
+        final AssetManager assets = new AssetManager();
+        XmlResourceParser parser = null;
+        try {
+            final int cookie = assets.addAssetPath(apkPath);
+            if (cookie == 0) {
+                throw new PackageParserException(PackageManager.INSTALL_PARSE_FAILED_NOT_APK,
+                        "Failed adding asset path: " + apkPath);
+            }
+            parser = assets.openXmlResourceParser(cookie, MappedApk.ANDROID_MANIFEST_FILENAME);
+            final PackageParser.Package pkg = parseManifest(parser);
+            pkg.codePath = apkPath;
+            pkg.baseCodePath = apkPath;
+            final MappedApk apk = PackageUtil.getMappedApk(apkFile);
+            try {
+                pkg.manifestDigest = getManifestDigest(apk);
+            } finally {
+                apk.close();
+            }
+            return pkg;
+        } catch (XmlPullParserException | IOException e) {
+            throw new PackageParserException(
+                    PackageManager.INSTALL_PARSE_FAILED_UNEXPECTED_EXCEPTION,
+                    "Failed to read manifest from " + apkPath, e);
+        } finally {
+            IoUtils.closeQuietly(parser);
+            assets.close();
+        }
+    }
+
+    /**
+     * Computes the digest of the manifest from the shared mapping of the APK, like
+     * {@link PackageParser#collectManifestDigest} does from its own copy of the file.
+     */
+    static ManifestDigest getManifestDigest(MappedApk apk) throws IOException {
+        final MappedApk.Entry entry = apk.getEntry(MappedApk.ANDROID_MANIFEST_FILENAME);
+        if (entry == null) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = apk.openEntry(entry);
+            return ManifestDigest.fromInputStream(in);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static PackageParser.Package parseManifest(XmlResourceParser parser)
+            throws PackageParserException, XmlPullParserException, IOException {
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG
+                && type != XmlPullParser.END_DOCUMENT) {
+        }
+        if (type != XmlPullParser.START_TAG || !TAG_MANIFEST.equals(parser.getName())) {
+            throw new PackageParserException(
+                    PackageManager.INSTALL_PARSE_FAILED_MANIFEST_MALFORMED,
+                    "No <manifest> tag");
+        }
+        final String packageName = parser.getAttributeValue(null, "package");
+        if (packageName == null || packageName.length() == 0) {
+            throw new PackageParserException(
+                    PackageManager.INSTALL_PARSE_FAILED_BAD_PACKAGE_NAME,
+                    "<manifest> does not specify package");
+        }
+
+        final PackageParser.Package pkg = new PackageParser.Package(packageName.intern());
+        pkg.mVersionCode = pkg.applicationInfo.versionCode =
+                parser.getAttributeIntValue(ANDROID_RESOURCES, "versionCode", 0);
+        pkg.mVersionName = getRawString(parser, "versionName");
+        pkg.mSharedUserId = getRawString(parser, "sharedUserId");
+        pkg.installLocation = pkg.applicationInfo.installLocation = parser.getAttributeIntValue(
+                ANDROID_RESOURCES, "installLocation", PackageInfo.INSTALL_LOCATION_UNSPECIFIED);
+
+        int targetSdkVersion = 0;
+        final int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            final String tagName = parser.getName();
+            if (TAG_USES_PERMISSION.equals(tagName)) {
+                final String name = parser.getAttributeValue(ANDROID_RESOURCES, "name");
+                final boolean required =
+                        parser.getAttributeBooleanValue(ANDROID_RESOURCES, "required", true);
+                if (name != null && !pkg.requestedPermissions.contains(name)) {
+                    pkg.requestedPermissions.add(name.intern());
+                    pkg.requestedPermissionsRequired.add(required ? Boolean.TRUE : Boolean.FALSE);
+                }
+            } else if (TAG_USES_SDK.equals(tagName)) {
+                checkMinSdkVersion(parser);
+                targetSdkVersion = parseSdkVersion(parser, "targetSdkVersion",
+                        parseSdkVersion(parser, "minSdkVersion", 1));
+            } else if (TAG_APPLICATION.equals(tagName)) {
+                parseApplication(parser, pkg);
+                continue;
+            }
+            // Everything else is left to the package manager.
+            XmlUtils.skipCurrentTag(parser);
+        }
+        pkg.applicationInfo.targetSdkVersion = targetSdkVersion;
+
+        addImplicitPermissions(pkg);
+        return pkg;
+    }
+
+    private static void parseApplication(XmlResourceParser parser, PackageParser.Package pkg)
+            throws XmlPullParserException, IOException {
+        final int labelRes = parser.getAttributeResourceValue(ANDROID_RESOURCES, "label", 0);
+        if (labelRes != 0) {
+            pkg.applicationInfo.labelRes = labelRes;
+        } else {
+            pkg.applicationInfo.nonLocalizedLabel = getRawString(parser, "label");
+        }
+        pkg.applicationInfo.icon = parser.getAttributeResourceValue(ANDROID_RESOURCES, "icon", 0);
+        pkg.applicationInfo.logo = parser.getAttributeResourceValue(ANDROID_RESOURCES, "logo", 0);
+
+        // Only the shared libraries are read; the components are skipped without being parsed.
+        int type;
+        final int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            final String tagName = parser.getName();
+            final String name = parser.getAttributeValue(ANDROID_RESOURCES, "name");
+            if (name != null && TAG_LIBRARY.equals(tagName)) {
+                pkg.libraryNames = ArrayUtils.add(pkg.libraryNames, name.intern());
+            } else if (name != null && TAG_USES_LIBRARY.equals(tagName)) {
+                if (parser.getAttributeBooleanValue(ANDROID_RESOURCES, "required", true)) {
+                    pkg.usesLibraries = ArrayUtils.add(pkg.usesLibraries, name.intern());
+                } else {
+                    pkg.usesOptionalLibraries =
+                            ArrayUtils.add(pkg.usesOptionalLibraries, name.intern());
+                }
+            }
+            XmlUtils.skipCurrentTag(parser);
+        }
+    }
+
+    /**
+     * Adds the permissions that the package manager implicitly grants to packages targeting older
+     * SDK versions, exactly like {@link PackageParser} does.
+     */
+    private static void addImplicitPermissions(PackageParser.Package pkg) {
+        final int targetSdkVersion = pkg.applicationInfo.targetSdkVersion;
+        for (PackageParser.NewPermissionInfo npi : PackageParser.NEW_PERMISSIONS) {
+            if (targetSdkVersion >= npi.sdkVersion) {
+                break;
+            }
+            if (!pkg.requestedPermissions.contains(npi.name)) {
+                pkg.requestedPermissions.add(npi.name);
+                pkg.requestedPermissionsRequired.add(Boolean.TRUE);
+            }
+        }
+        for (PackageParser.SplitPermissionInfo spi : PackageParser.SPLIT_PERMISSIONS) {
+            if (targetSdkVersion >= spi.targetSdk
+                    || !pkg.requestedPermissions.contains(spi.rootPerm)) {
+                continue;
+            }
+            for (String perm : spi.newPerms) {
+                if (!pkg.requestedPermissions.contains(perm)) {
+                    pkg.requestedPermissions.add(perm);
+                    pkg.requestedPermissionsRequired.add(Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rejects packages requiring a newer platform than the device's with
+     * {@link PackageManager#INSTALL_FAILED_OLDER_SDK}, like {@link PackageParser} does.
+     */
+    private static void checkMinSdkVersion(XmlResourceParser parser)
+            throws PackageParserException {
+        final String value = parser.getAttributeValue(ANDROID_RESOURCES, "minSdkVersion");
+        if (value == null) {
+            return;
+        }
+        final int minSdkVersion;
+        try {
+            minSdkVersion = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            // A codename, which only the development platform of that name satisfies.
+            if (!value.equals(Build.VERSION.CODENAME)) {
+                throw new PackageParserException(PackageManager.INSTALL_FAILED_OLDER_SDK,
+                        "Requires development platform " + value);
+            }
+            return;
+        }
+        if (minSdkVersion > Build.VERSION.SDK_INT) {
+            throw new PackageParserException(PackageManager.INSTALL_FAILED_OLDER_SDK,
+                    "Requires newer sdk version #" + minSdkVersion + " (current version is #"
+                    + Build.VERSION.SDK_INT + ")");
+        }
+    }
+
+    /**
+     * Returns the value of an SDK version attribute. Codenames are treated as the development
+     * version, which is what the package manager resolves them to on a matching platform.
+     */
+    private static int parseSdkVersion(XmlResourceParser parser, String attr, int defValue) {
+        final String value = parser.getAttributeValue(ANDROID_RESOURCES, attr);
+        if (value == null) {
+            return defValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return Build.VERSION_CODES.CUR_DEVELOPMENT;
+        }
+    }
+
+    /**
+     * Returns the raw string value of an attribute, or {@code null} if it is absent or is a
+     * reference that would need the resource table to be resolved.
+     */
+    private static String getRawString(XmlResourceParser parser, String attr) {
+        if (parser.getAttributeResourceValue(ANDROID_RESOURCES, attr, 0) != 0) {
+            return null;
+        }
+        return parser.getAttributeValue(ANDROID_RESOURCES, attr);
+    }
+}
@@ -0,0 +1,312 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.pm.PackageParser;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Process-wide cache of parsed packages and their app snippets, so that the screens of a single
+ * install flow do not parse the same APK and load its label and icon over and over again.
+ *
+ * <p>Entries are keyed by the identity of the APK file (canonical path, size, modification time
+ * and inode), so a file which has been replaced since it was parsed is never served from the
+ * cache. The cache is bounded by the estimated amount of memory held by its entries and evicts
+ * the least recently used ones first.
+ */
+final class PackageParseCache {
+    private static final String TAG = "PackageParseCache";
+
+    /** Upper bound on the estimated memory held by the cache, in bytes. */
+    private static final int MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    /** Rough cost of a parsed package without any components, in bytes. */
+    private static final int PACKAGE_BASE_SIZE_BYTES = 16 * 1024;
+
+    /** Rough cost of a single parsed component or permission, in bytes. */
+    private static final int COMPONENT_SIZE_BYTES = 1024;
+
+    /** Cost assumed for icons whose size cannot be determined, in bytes. */
+    private static final int DEFAULT_ICON_SIZE_BYTES = 16 * 1024;
+
+    /**
+     * Maximum number of mapped APKs kept around. Mappings cost address space rather than heap, so
+     * they are bounded by count.
+     */
+    private static final int MAX_MAPPED_APKS = 4;
+
+    private static PackageParseCache sInstance;
+
+    /**
+     * Identity of an APK file. Two keys are only equal if they describe the same, unmodified file.
+     */
+    static final class Key {
+        final String path;
+        final long size;
+        final long mtime;
+        final long inode;
+
+        Key(String path, long size, long mtime, long inode) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+        }
+
+        /**
+         * Returns the key of the specified file or {@code null} if the file cannot be examined, in
+         * which case it must not be cached.
+         */
+        static Key forFile(File file) {
+            try {
+                final String path = file.getCanonicalPath();
+                final StructStat stat = Os.stat(path);
+                return new Key(path, stat.st_size, stat.st_mtime, stat.st_ino);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to resolve " + file, e);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Failed to stat " + file, e);
+            }
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return size == other.size && mtime == other.mtime && inode == other.inode
+                    && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (size ^ (size >>> 32));
+            result = 31 * result + (int) (mtime ^ (mtime >>> 32));
+            result = 31 * result + (int) (inode ^ (inode >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return path + " (size=" + size + ", mtime=" + mtime + ", inode=" + inode + ")";
+        }
+    }
+
+    /**
+     * Cached state of a single APK. Entries are never modified once they are in the cache so that
+     * their estimated size stays accurate; adding to an entry replaces it.
+     */
+    private static final class Entry {
+        final PackageParser.Package pkg;
+        final boolean lite;
+        final String snippetPackageName;
+        final Configuration snippetConfig;
+        final CharSequence label;
+        final Drawable.ConstantState iconState;
+        final int iconSizeBytes;
+
+        Entry(PackageParser.Package pkg, boolean lite, String snippetPackageName,
+                Configuration snippetConfig, CharSequence label, Drawable.ConstantState iconState,
+                int iconSizeBytes) {
+            this.pkg = pkg;
+            this.lite = lite;
+            this.snippetPackageName = snippetPackageName;
+            this.snippetConfig = snippetConfig;
+            this.label = label;
+            this.iconState = iconState;
+            this.iconSizeBytes = iconSizeBytes;
+        }
+
+        int getSizeBytes() {
+            int size = 0;
+            if (pkg != null) {
+                final int components = pkg.activities.size() + pkg.receivers.size()
+                        + pkg.services.size() + pkg.providers.size()
+                        + pkg.permissions.size() + pkg.requestedPermissions.size();
+                size += PACKAGE_BASE_SIZE_BYTES + components * COMPONENT_SIZE_BYTES;
+            }
+            if (label != null) {
+                size += 2 * label.length();
+            }
+            return size + iconSizeBytes;
+        }
+    }
+
+    private final LruCache<Key, Entry> mCache = new LruCache<Key, Entry>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Entry entry) {
+            return entry.getSizeBytes();
+        }
+    };
+
+    private final LruCache<Key, MappedApk> mMappedApks =
+            new LruCache<Key, MappedApk>(MAX_MAPPED_APKS) {
+        @Override
+        protected void entryRemoved(boolean evicted, Key key, MappedApk oldValue,
+                MappedApk newValue) {
+            // Unmapped once the callers still reading it have closed it as well.
+            oldValue.close();
+        }
+    };
+
+    private int mPackageHits;
+    private int mPackageMisses;
+    private int mSnippetHits;
+    private int mSnippetMisses;
+
+    private PackageParseCache() {}
+
+    static synchronized PackageParseCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PackageParseCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached parse result of the specified APK or {@code null} if there is none.
+     *
+     * @param allowLite whether a result of {@link PackageLiteParser} is acceptable; a full parse
+     *        result is always acceptable
+     */
+    synchronized PackageParser.Package getPackage(Key key, boolean allowLite) {
+        final Entry entry = mCache.get(key);
+        if (entry == null || entry.pkg == null || (entry.lite && !allowLite)) {
+            mPackageMisses++;
+            return null;
+        }
+        mPackageHits++;
+        return entry.pkg;
+    }
+
+    synchronized void putPackage(Key key, PackageParser.Package pkg, boolean lite) {
+        final Entry old = mCache.get(key);
+        if (old != null) {
+            if (lite && old.pkg != null && !old.lite) {
+                // Never replace a full parse result with a lite one.
+                return;
+            }
+            mCache.put(key, new Entry(pkg, lite, old.snippetPackageName, old.snippetConfig,
+                    old.label, old.iconState, old.iconSizeBytes));
+        } else {
+            mCache.put(key, new Entry(pkg, lite, null, null, null, null, 0));
+        }
+    }
+
+    /**
+     * Returns the cached snippet of the specified APK or {@code null} if there is none that was
+     * loaded for the same package name and resource configuration. Each call returns a new icon
+     * drawable so that snippets can be displayed by several views at once.
+     */
+    synchronized PackageUtil.AppSnippet getSnippet(Key key, String packageName,
+            Resources res) {
+        final Entry entry = mCache.get(key);
+        if (entry == null || entry.iconState == null
+                || !packageName.equals(entry.snippetPackageName)
+                || !res.getConfiguration().equals(entry.snippetConfig)) {
+            mSnippetMisses++;
+            return null;
+        }
+        mSnippetHits++;
+        return new PackageUtil.AppSnippet(entry.label, entry.iconState.newDrawable(res));
+    }
+
+    synchronized void putSnippet(Key key, String packageName, Resources res,
+            PackageUtil.AppSnippet snippet) {
+        final Drawable.ConstantState iconState = snippet.icon.getConstantState();
+        if (iconState == null) {
+            // The icon can't be shared between views; don't cache it.
+            return;
+        }
+        final Entry old = mCache.get(key);
+        mCache.put(key, new Entry((old != null) ? old.pkg : null, (old != null) && old.lite,
+                packageName, new Configuration(res.getConfiguration()), snippet.label, iconState,
+                getIconSizeBytes(snippet.icon)));
+    }
+
+    /**
+     * Returns the shared {@link MappedApk} of the specified APK, mapping it if necessary. The
+     * caller must {@link MappedApk#close()} it when done.
+     */
+    MappedApk getMappedApk(Key key, File file) throws IOException {
+        synchronized (this) {
+            final MappedApk apk = mMappedApks.get(key);
+            if (apk != null) {
+                return apk.acquire();
+            }
+        }
+        // Map outside of the lock; if two threads race, the first one to finish wins.
+        final MappedApk apk = MappedApk.open(file);
+        synchronized (this) {
+            final MappedApk existing = mMappedApks.get(key);
+            if (existing != null) {
+                apk.close();
+                return existing.acquire();
+            }
+            mMappedApks.put(key, apk);
+            return apk.acquire();
+        }
+    }
+
+    private static int getIconSizeBytes(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getByteCount();
+            }
+        }
+        return DEFAULT_ICON_SIZE_BYTES;
+    }
+
+    synchronized int getPackageHitCount() {
+        return mPackageHits;
+    }
+
+    synchronized int getPackageMissCount() {
+        return mPackageMisses;
+    }
+
+    synchronized int getSnippetHitCount() {
+        return mSnippetHits;
+    }
+
+    synchronized int getSnippetMissCount() {
+        return mSnippetMisses;
+    }
+
+    synchronized int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+}
@@ -19,26 +19,30 @@ package com.android.packageinstaller;
 
 import android.app.Activity;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageParser;
 import android.content.pm.PackageParser.PackageParserException;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
+import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.os.ParcelFileDescriptor;
 import android.os.UserHandle;
 
 import java.io.File;
-import java.util.List;
+import java.io.IOException;
 
 /**
  * This is a utility class for defining some utility methods and constants
  * used in the package installer application.
  */
 public class PackageUtil {
+    private static final String TAG = "PackageUtil";
+    private static final String DESCRIPTOR_PATH_PREFIX = "/proc/self/fd/";
+
     public static final String PREFIX="com.android.packageinstaller.";
     public static final String INTENT_ATTR_INSTALL_STATUS = PREFIX+"installStatus";
     public static final String INTENT_ATTR_APPLICATION_INFO=PREFIX+"applicationInfo";
@@ -60,19 +64,129 @@ public class PackageUtil {
     }
 
     /**
-     * Utility method to get package information for a given {@link File}
+     * Utility method to get package information for a given {@link File}. The result is shared
+     * through {@link PackageParseCache} and must not be modified by callers.
      */
     public static PackageParser.Package getPackageInfo(File sourceFile) {
+        final PackageParseCache cache = PackageParseCache.getInstance();
+        final PackageParseCache.Key key = getPackageKey(sourceFile);
+        if (key != null) {
+            PackageParser.Package pkg = cache.getPackage(key, false);
+            if (pkg != null) {
+                return pkg;
+            }
+        }
         final PackageParser parser = new PackageParser();
         try {
             PackageParser.Package pkg = parser.parseMonolithicPackage(sourceFile, 0);
             parser.collectManifestDigest(pkg);
+            if (key != null) {
+                cache.putPackage(key, pkg, false);
+            }
             return pkg;
         } catch (PackageParserException e) {
             return null;
         }
     }
 
+    /**
+     * Utility method to get the manifest-level package information for a given {@link File},
+     * without parsing any of its components. See {@link PackageLiteParser}. The result is shared
+     * through {@link PackageParseCache} and must not be modified by callers.
+     */
+    public static PackageParser.Package getPackageInfoLite(File sourceFile) {
+        try {
+            return parsePackageLite(sourceFile);
+        } catch (PackageParserException e) {
+            Log.w(TAG, "Failed to parse " + sourceFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Like {@link #getPackageInfoLite(File)}, but reports why the package could not be parsed,
+     * e.g. {@link PackageManager#INSTALL_FAILED_OLDER_SDK}.
+     */
+    static PackageParser.Package parsePackageLite(File sourceFile)
+            throws PackageParserException {
+        final PackageParseCache cache = PackageParseCache.getInstance();
+        final PackageParseCache.Key key = getPackageKey(sourceFile);
+        if (key != null) {
+            PackageParser.Package pkg = cache.getPackage(key, true);
+            if (pkg != null) {
+                return pkg;
+            }
+        }
+        PackageParser.Package pkg = PackageLiteParser.parsePackage(sourceFile);
+        if (key != null) {
+            cache.putPackage(key, pkg, true);
+        }
+        return pkg;
+    }
+
+    /**
+     * Returns the string resource explaining the specified install failure to the user, or
+     * {@code -1} if there is no specific explanation.
+     */
+    static int getInstallFailureExplanation(int errCode) {
+        switch (errCode) {
+            case PackageManager.INSTALL_FAILED_INVALID_APK:
+                return R.string.install_failed_invalid_apk;
+            case PackageManager.INSTALL_PARSE_FAILED_INCONSISTENT_CERTIFICATES:
+                return R.string.install_failed_inconsistent_certificates;
+            case PackageManager.INSTALL_FAILED_UPDATE_INCOMPATIBLE:
+                return R.string.install_failed_update_incompatible;
+            case PackageManager.INSTALL_FAILED_OLDER_SDK:
+                return R.string.install_failed_older_sdk;
+            case PackageManager.INSTALL_FAILED_CPU_ABI_INCOMPATIBLE:
+                return R.string.install_failed_cpu_abi_incompatible;
+            case PackageManager.INSTALL_FAILED_VERSION_DOWNGRADE:
+                return R.string.install_failed_version_downgrade;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Utility method to get the shared, memory-mapped view of a given APK {@link File}. See
+     * {@link MappedApk}. The caller must {@link MappedApk#close()} it when done.
+     */
+    static MappedApk getMappedApk(File sourceFile) throws IOException {
+        final PackageParseCache.Key key = PackageParseCache.Key.forFile(sourceFile);
+        if (key == null) {
+            // Can't tell whether a cached mapping is still current; map it privately.
+            return MappedApk.open(sourceFile);
+        }
+        return PackageParseCache.getInstance().getMappedApk(key, sourceFile);
+    }
+
+    /**
+     * Returns the key under which the parse result of the specified APK is cached, or
+     * {@code null} if it must not be cached. Results parsed through a descriptor path are not
+     * cached, as their code path is only valid while the descriptor is open.
+     */
+    private static PackageParseCache.Key getPackageKey(File sourceFile) {
+        if (isDescriptorPath(sourceFile)) {
+            return null;
+        }
+        return PackageParseCache.Key.forFile(sourceFile);
+    }
+
+    /**
+     * Returns a path through which the APK open on the specified descriptor can be read, for the
+     * parsers that only accept paths. The path is only valid while the descriptor is open.
+     */
+    static File getFileForDescriptor(ParcelFileDescriptor fd) {
+        return new File(DESCRIPTOR_PATH_PREFIX + fd.getFd());
+    }
+
+    /**
+     * Returns whether the specified path was returned by {@link #getFileForDescriptor}.
+     */
+    static boolean isDescriptorPath(File file) {
+        return file.getPath().startsWith(DESCRIPTOR_PATH_PREFIX);
+    }
+
     public static View initSnippet(View snippetView, CharSequence label, Drawable icon) {
         ((ImageView)snippetView.findViewById(R.id.app_icon)).setImageDrawable(icon);
         ((TextView)snippetView.findViewById(R.id.app_name)).setText(label);
@@ -136,17 +250,13 @@ public class PackageUtil {
         return appSnippet;
     }
 
+    /**
+     * Returns whether a package whose name equals the specified one ignoring case is installed,
+     * including uninstalled packages whose data has been kept. The first call in a process builds
+     * the {@link InstalledPackageIndex}, so this must not be called on the main thread.
+     */
     public static boolean isPackageAlreadyInstalled(Activity context, String pkgName) {
-        List<PackageInfo> installedList = context.getPackageManager().getInstalledPackages(
-                PackageManager.GET_UNINSTALLED_PACKAGES);
-        int installedListSize = installedList.size();
-        for(int i = 0; i < installedListSize; i++) {
-            PackageInfo tmp = installedList.get(i);
-            if(pkgName.equalsIgnoreCase(tmp.packageName)) {
-                return true;
-            }
-        }
-        return false;
+        return InstalledPackageIndex.getInstance(context).getIgnoreCase(pkgName) != null;
     }
 
     static public class AppSnippet {
@@ -169,6 +279,14 @@ public class PackageUtil {
             Activity pContext, ApplicationInfo appInfo, File sourceFile) {
         final String archiveFilePath = sourceFile.getAbsolutePath();
         Resources pRes = pContext.getResources();
+        final PackageParseCache cache = PackageParseCache.getInstance();
+        final PackageParseCache.Key key = PackageParseCache.Key.forFile(sourceFile);
+        if (key != null) {
+            AppSnippet snippet = cache.getSnippet(key, appInfo.packageName, pRes);
+            if (snippet != null) {
+                return snippet;
+            }
+        }
         AssetManager assmgr = new AssetManager();
         assmgr.addAssetPath(archiveFilePath);
         Resources res = new Resources(assmgr, pRes.getDisplayMetrics(), pRes.getConfiguration());
@@ -197,6 +315,10 @@ public class PackageUtil {
         if (icon == null) {
             icon = pContext.getPackageManager().getDefaultActivityIcon();
         }
-        return new PackageUtil.AppSnippet(label, icon);
+        AppSnippet snippet = new PackageUtil.AppSnippet(label, icon);
+        if (key != null) {
+            cache.putSnippet(key, appInfo.packageName, pRes, snippet);
+        }
+        return snippet;
     }
 }
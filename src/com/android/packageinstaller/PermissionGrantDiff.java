@@ -0,0 +1,91 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * What a permission grant request changes for the requesting package, computed in a single pass
+ * over the request from one fetch of the package.
+ *
+ * <p>A requested permission can only be granted if the package requests it, does not require
+ * it, has not been granted it yet and it is a NORMAL or DANGEROUS permission. Requests for
+ * anything else are irrelevant or come from untrusted callers, and are dropped.
+ */
+final class PermissionGrantDiff {
+    /** Permissions to grant, in the order of the request and without duplicates. */
+    final String[] grantable;
+    /** The package as it will be once {@link #grantable} has been granted. */
+    final PackageInfo updatedPkgInfo;
+
+    private PermissionGrantDiff(String[] grantable, PackageInfo updatedPkgInfo) {
+        this.grantable = grantable;
+        this.updatedPkgInfo = updatedPkgInfo;
+    }
+
+    /**
+     * Computes the grant of the specified permissions to a package.
+     *
+     * @param permissions the metadata of the permissions defined on the device
+     * @param pkgInfo the package, fetched with {@link PackageManager#GET_PERMISSIONS}; its
+     *         requested permission flags are updated in place
+     * @param requested the permissions of the grant request, or {@code null}
+     */
+    static PermissionGrantDiff compute(PermissionInfoCache permissions, PackageInfo pkgInfo,
+            String[] requested) {
+        final String[] pkgPermissions = pkgInfo.requestedPermissions;
+        if (requested == null || pkgPermissions == null) {
+            return new PermissionGrantDiff(new String[0], pkgInfo);
+        }
+
+        // Index of the package's permissions, so that each request is matched in constant time.
+        final HashMap<String, Integer> indices =
+                new HashMap<String, Integer>(pkgPermissions.length * 2);
+        for (int i = 0; i < pkgPermissions.length; i++) {
+            indices.put(pkgPermissions[i], i);
+        }
+
+        final ArrayList<String> grantable = new ArrayList<String>();
+        for (String permission : requested) {
+            final Integer index = (permission != null) ? indices.get(permission) : null;
+            if (index == null) {
+                continue;
+            }
+            final int flags = pkgInfo.requestedPermissionsFlags[index];
+            // Required and granted permissions are useless to grant, and this also skips
+            // duplicates of the request, which are marked granted below.
+            if ((flags & (PackageInfo.REQUESTED_PERMISSION_REQUIRED
+                    | PackageInfo.REQUESTED_PERMISSION_GRANTED)) != 0) {
+                continue;
+            }
+            final PermissionInfoCache.PermissionRecord record = permissions.get(permission);
+            if (record == null || (record.getProtection() != PermissionInfo.PROTECTION_NORMAL
+                    && record.getProtection() != PermissionInfo.PROTECTION_DANGEROUS)) {
+                continue;
+            }
+            grantable.add(permission);
+            pkgInfo.requestedPermissionsFlags[index] =
+                    flags | PackageInfo.REQUESTED_PERMISSION_GRANTED;
+        }
+        return new PermissionGrantDiff(grantable.toArray(new String[grantable.size()]), pkgInfo);
+    }
+}
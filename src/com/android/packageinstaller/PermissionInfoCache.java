@@ -0,0 +1,302 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionGroupInfo;
+import android.content.pm.PermissionInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Index of the metadata of every permission defined on the device, so that permission requests
+ * can be checked without asking the package manager about each permission.
+ *
+ * <p>The index is built from the permission groups, with one query of the permissions of each
+ * group and one of the permissions without a group, rather than from the permissions of every
+ * installed package. It is thrown away whenever a package defining permissions is added, removed
+ * or replaced; the next call to {@link #getInstance(Context)} builds it again. Permissions the
+ * index does not have, e.g. ones added at runtime after it was built or ones whose group is not
+ * defined, are looked up one by one when asked for. Names are interned, as they are shared with
+ * the requested permissions of the packages being installed.
+ */
+final class PermissionInfoCache {
+    private static final String TAG = "PermissionInfoCache";
+
+    private static PermissionInfoCache sInstance;
+    private static BroadcastReceiver sReceiver;
+    /** Number of package changes seen, so that an index built across a change is not kept. */
+    private static int sGeneration;
+
+    /**
+     * Metadata of a permission, as in {@link PermissionInfo}.
+     */
+    static final class PermissionRecord {
+        final String name;
+        /** Package defining the permission. */
+        final String packageName;
+        final String group;
+        final int protectionLevel;
+        final int labelRes;
+        final CharSequence nonLocalizedLabel;
+        final int descriptionRes;
+        final CharSequence nonLocalizedDescription;
+        /** {@code PermissionInfo.flags} of the permission. */
+        final int flags;
+
+        PermissionRecord(PermissionInfo info) {
+            name = info.name.intern();
+            packageName = (info.packageName != null) ? info.packageName.intern() : null;
+            group = (info.group != null) ? info.group.intern() : null;
+            protectionLevel = info.protectionLevel;
+            labelRes = info.labelRes;
+            nonLocalizedLabel = info.nonLocalizedLabel;
+            descriptionRes = info.descriptionRes;
+            nonLocalizedDescription = info.nonLocalizedDescription;
+            flags = info.flags;
+        }
+
+        /**
+         * Returns the base protection level, e.g. {@link PermissionInfo#PROTECTION_DANGEROUS}.
+         */
+        int getProtection() {
+            return protectionLevel & PermissionInfo.PROTECTION_MASK_BASE;
+        }
+
+        /**
+         * Loads the label of the permission, as {@link PermissionInfo#loadLabel} does.
+         */
+        CharSequence loadLabel(PackageManager pm) {
+            if (nonLocalizedLabel != null) {
+                return nonLocalizedLabel;
+            }
+            if (labelRes != 0) {
+                final CharSequence label = pm.getText(packageName, labelRes, null);
+                if (label != null) {
+                    return label.toString().trim();
+                }
+            }
+            return name;
+        }
+
+        /**
+         * Loads the description of the permission, as {@link PermissionInfo#loadDescription}
+         * does; {@code null} if it has none.
+         */
+        CharSequence loadDescription(PackageManager pm) {
+            if (nonLocalizedDescription != null) {
+                return nonLocalizedDescription;
+            }
+            if (descriptionRes != 0) {
+                final CharSequence description = pm.getText(packageName, descriptionRes, null);
+                if (description != null) {
+                    return description;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final PackageManager mPm;
+    private final HashMap<String, PermissionRecord> mPermissions;
+    /** Packages defining at least one permission; guarded by the class. */
+    private final HashSet<String> mDefiningPackages;
+
+    private PermissionInfoCache(PackageManager pm, HashMap<String, PermissionRecord> permissions,
+            HashSet<String> definingPackages) {
+        mPm = pm;
+        mPermissions = permissions;
+        mDefiningPackages = definingPackages;
+    }
+
+    /**
+     * Returns the index, building it if necessary. Building the index queries all permissions, so
+     * this must not be called on the main thread.
+     */
+    static PermissionInfoCache getInstance(Context context) {
+        final int generation;
+        synchronized (PermissionInfoCache.class) {
+            if (sInstance != null) {
+                return sInstance;
+            }
+            if (sReceiver == null) {
+                // Register before taking the snapshot so that no change is missed.
+                sReceiver = registerReceiver(context.getApplicationContext());
+            }
+            generation = sGeneration;
+        }
+        // The index outlives the caller, so it must not keep an activity's package manager.
+        final PermissionInfoCache cache =
+                build(context.getApplicationContext().getPackageManager());
+        synchronized (PermissionInfoCache.class) {
+            if (generation != sGeneration) {
+                // Good enough for this caller, but may have missed the change.
+                return cache;
+            }
+            if (sInstance == null) {
+                sInstance = cache;
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Returns the metadata of the specified permission, or {@code null} if it is not defined. A
+     * permission missing from the index is looked up in the package manager, so this must not be
+     * called on the main thread.
+     */
+    PermissionRecord get(String name) {
+        synchronized (this) {
+            final PermissionRecord record = mPermissions.get(name);
+            if (record != null) {
+                return record;
+            }
+        }
+        final PermissionInfo info;
+        try {
+            info = mPm.getPermissionInfo(name, 0);
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+        final PermissionRecord record = new PermissionRecord(info);
+        synchronized (PermissionInfoCache.class) {
+            if (record.packageName != null) {
+                mDefiningPackages.add(record.packageName);
+            }
+        }
+        synchronized (this) {
+            mPermissions.put(record.name, record);
+        }
+        return record;
+    }
+
+    private static PermissionInfoCache build(PackageManager pm) {
+        final HashMap<String, PermissionRecord> permissions =
+                new HashMap<String, PermissionRecord>();
+        final HashSet<String> definingPackages = new HashSet<String>();
+        final List<PermissionGroupInfo> groups = pm.getAllPermissionGroups(0);
+        for (int i = 0; i < groups.size(); i++) {
+            addPermissions(pm, groups.get(i).name, permissions, definingPackages);
+        }
+        addPermissions(pm, null, permissions, definingPackages);
+        return new PermissionInfoCache(pm, permissions, definingPackages);
+    }
+
+    /**
+     * Adds the permissions of the specified group, or those without a group if it is
+     * {@code null}.
+     */
+    private static void addPermissions(PackageManager pm, String group,
+            HashMap<String, PermissionRecord> permissions, HashSet<String> definingPackages) {
+        final List<PermissionInfo> infos;
+        try {
+            infos = pm.queryPermissionsByGroup(group, 0);
+        } catch (NameNotFoundException e) {
+            // The group has been removed since it was listed.
+            return;
+        }
+        for (int i = 0; i < infos.size(); i++) {
+            final PermissionRecord record = new PermissionRecord(infos.get(i));
+            permissions.put(record.name, record);
+            if (record.packageName != null) {
+                definingPackages.add(record.packageName);
+            }
+        }
+    }
+
+    private static BroadcastReceiver registerReceiver(Context context) {
+        final PackageManager pm = context.getPackageManager();
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final String action = intent.getAction();
+                if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                        || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                    final String[] packageNames =
+                            intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                    if (packageNames != null) {
+                        for (String packageName : packageNames) {
+                            onPackageChanged(pm, packageName);
+                        }
+                    }
+                    return;
+                }
+                final Uri data = intent.getData();
+                final String packageName = (data != null) ? data.getSchemeSpecificPart() : null;
+                if (packageName != null) {
+                    onPackageChanged(pm, packageName);
+                }
+            }
+        };
+
+        // Broadcasts are handled on a background thread, as they may query the package manager.
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper());
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(receiver, packageFilter, null, handler);
+        final IntentFilter externalFilter = new IntentFilter();
+        externalFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        externalFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(receiver, externalFilter, null, handler);
+        return receiver;
+    }
+
+    /**
+     * Throws the index away if the specified package defined permissions before the change or
+     * defines some after it.
+     */
+    private static void onPackageChanged(PackageManager pm, String packageName) {
+        synchronized (PermissionInfoCache.class) {
+            sGeneration++;
+            if (sInstance == null) {
+                return;
+            }
+            if (sInstance.mDefiningPackages.contains(packageName)) {
+                sInstance = null;
+                return;
+            }
+        }
+        PackageInfo info = null;
+        try {
+            info = pm.getPackageInfo(packageName,
+                    PackageManager.GET_PERMISSIONS | PackageManager.GET_UNINSTALLED_PACKAGES);
+        } catch (NameNotFoundException e) {
+        }
+        if (info != null && info.permissions != null && info.permissions.length > 0) {
+            synchronized (PermissionInfoCache.class) {
+                sInstance = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionGroupInfo;
+import android.content.pm.PermissionInfo;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Adapter of {@link PermissionListView} listing the permissions of a package the way
+ * {@link android.widget.AppSecurityPermissions} does, in a Privacy and a Device Access section,
+ * with one row per permission and permissions sorted by group.
+ *
+ * <p>Rows are computed by {@link #load} on a worker thread, labels and descriptions included, so
+ * that binding a row on the main thread only sets its text. Row views are recycled, which keeps
+ * the cost of showing the list independent of the number of permissions.
+ *
+ * <p>Permissions which have a description can be tapped to show it, see
+ * {@link PermissionListView}.
+ */
+final class PermissionListAdapter extends BaseAdapter {
+    private static final int TYPE_HEADER = 0;
+    private static final int TYPE_PERMISSION = 1;
+
+    /**
+     * A section header, or a permission of the section.
+     */
+    static final class Row {
+        final int type;
+        /** String of the section the row belongs to. */
+        final int sectionRes;
+        /** Label of the group of the permission, only set on the first row of the group. */
+        final CharSequence groupLabel;
+        final CharSequence label;
+        /** Description of the permission, or {@code null} if it has none. */
+        final CharSequence description;
+        final boolean dangerous;
+
+        Row(int type, int sectionRes, CharSequence groupLabel, CharSequence label,
+                CharSequence description, boolean dangerous) {
+            this.type = type;
+            this.sectionRes = sectionRes;
+            this.groupLabel = groupLabel;
+            this.label = label;
+            this.description = description;
+            this.dangerous = dangerous;
+        }
+    }
+
+    /**
+     * The rows of the list, ready to be shown.
+     */
+    static final class Rows {
+        final List<Row> rows;
+        /** Number of permissions in the Privacy section. */
+        final int personalCount;
+        /** Number of permissions in the Device Access section. */
+        final int deviceCount;
+
+        Rows(List<Row> rows, int personalCount, int deviceCount) {
+            this.rows = rows;
+            this.personalCount = personalCount;
+            this.deviceCount = deviceCount;
+        }
+    }
+
+    /** A permission to list, before it is given its place. */
+    private static final class Permission {
+        final CharSequence groupLabel;
+        final CharSequence label;
+        final CharSequence description;
+        final boolean dangerous;
+
+        Permission(CharSequence groupLabel, CharSequence label, CharSequence description,
+                boolean dangerous) {
+            this.groupLabel = groupLabel;
+            this.label = label;
+            this.description = description;
+            this.dangerous = dangerous;
+        }
+    }
+
+    private static final class ViewHolder {
+        ImageView icon;
+        TextView group;
+        TextView label;
+    }
+
+    private final LayoutInflater mInflater;
+    private final List<Row> mRows;
+
+    PermissionListAdapter(Context context, Rows rows) {
+        mInflater = LayoutInflater.from(context);
+        mRows = rows.rows;
+    }
+
+    /**
+     * Computes the rows listing the permissions of a package. Loads labels, so this must not be
+     * called on the main thread.
+     *
+     * @param pkgInfo the package, with its requested permissions
+     * @param installedPkgInfo the installed version of the package, or {@code null}; permissions
+     *         it was granted are listed even if the package no longer requires them
+     */
+    static Rows load(Context context, PermissionInfoCache permissions, PackageInfo pkgInfo,
+            PackageInfo installedPkgInfo) {
+        final PackageManager pm = context.getPackageManager();
+        final ArrayList<Permission> personal = new ArrayList<Permission>();
+        final ArrayList<Permission> device = new ArrayList<Permission>();
+        final String[] requested = pkgInfo.requestedPermissions;
+        if (requested != null) {
+            final HashMap<String, Integer> installedFlags = getRequestedFlags(installedPkgInfo);
+            final HashMap<String, PermissionGroupInfo> groups =
+                    new HashMap<String, PermissionGroupInfo>();
+            final HashMap<String, CharSequence> groupLabels = new HashMap<String, CharSequence>();
+            final HashSet<String> seen = new HashSet<String>();
+            for (int i = 0; i < requested.length; i++) {
+                final PermissionInfoCache.PermissionRecord record = permissions.get(requested[i]);
+                if (record == null || !seen.add(record.name)) {
+                    continue;
+                }
+                final Integer existingFlags = installedFlags.get(record.name);
+                if (!isDisplayable(record, pkgInfo.requestedPermissionsFlags[i],
+                        (existingFlags != null) ? existingFlags : 0)) {
+                    continue;
+                }
+                // Groups and sections as in AppSecurityPermissions.setPermissions: a permission
+                // is personal if its group is flagged FLAG_PERSONAL_INFO, and is listed without
+                // a group if its group is not defined.
+                PermissionGroupInfo group = null;
+                if (record.group != null) {
+                    if (!groups.containsKey(record.group)) {
+                        try {
+                            group = pm.getPermissionGroupInfo(record.group, 0);
+                            groupLabels.put(record.group, group.loadLabel(pm));
+                        } catch (NameNotFoundException e) {
+                        }
+                        groups.put(record.group, group);
+                    }
+                    group = groups.get(record.group);
+                }
+                final Permission permission = new Permission(
+                        (group != null) ? groupLabels.get(record.group) : null,
+                        record.loadLabel(pm), record.loadDescription(pm),
+                        record.getProtection() == PermissionInfo.PROTECTION_DANGEROUS);
+                if (group != null && (group.flags & PermissionGroupInfo.FLAG_PERSONAL_INFO) != 0) {
+                    personal.add(permission);
+                } else {
+                    device.add(permission);
+                }
+            }
+        }
+
+        final ArrayList<Row> rows = new ArrayList<Row>(personal.size() + device.size() + 2);
+        addSection(rows, R.string.privacyPerms, personal);
+        addSection(rows, R.string.devicePerms, device);
+        return new Rows(rows, personal.size(), device.size());
+    }
+
+    private static HashMap<String, Integer> getRequestedFlags(PackageInfo pkgInfo) {
+        final HashMap<String, Integer> flags = new HashMap<String, Integer>();
+        if (pkgInfo != null && pkgInfo.requestedPermissions != null) {
+            for (int i = 0; i < pkgInfo.requestedPermissions.length; i++) {
+                flags.put(pkgInfo.requestedPermissions[i], pkgInfo.requestedPermissionsFlags[i]);
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Whether {@link android.widget.AppSecurityPermissions} lists the permission. Mirrors
+     * {@code AppSecurityPermissions.isDisplayablePermission}, which has to be kept in sync.
+     */
+    private static boolean isDisplayable(PermissionInfoCache.PermissionRecord record,
+            int newReqFlags, int existingReqFlags) {
+        final int base = record.getProtection();
+        final boolean isNormal = base == PermissionInfo.PROTECTION_NORMAL;
+        final boolean isDangerous = base == PermissionInfo.PROTECTION_DANGEROUS;
+        final boolean isRequired = (newReqFlags & PackageInfo.REQUESTED_PERMISSION_REQUIRED) != 0;
+        final boolean isDevelopment =
+                (record.protectionLevel & PermissionInfo.PROTECTION_FLAG_DEVELOPMENT) != 0;
+        final boolean wasGranted =
+                (existingReqFlags & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0;
+        final boolean isGranted = (newReqFlags & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0;
+        if ((isNormal || isDangerous) && (isRequired || wasGranted || isGranted)) {
+            return true;
+        }
+        // Development permissions are only listed once they have been granted.
+        return isDevelopment && wasGranted;
+    }
+
+    private static void addSection(List<Row> rows, int sectionRes, List<Permission> permissions) {
+        if (permissions.isEmpty()) {
+            return;
+        }
+        final Collator collator = Collator.getInstance();
+        Collections.sort(permissions, new Comparator<Permission>() {
+            @Override
+            public int compare(Permission lhs, Permission rhs) {
+                // Permissions without a group go last.
+                if (lhs.groupLabel != rhs.groupLabel) {
+                    if (lhs.groupLabel == null) {
+                        return 1;
+                    }
+                    if (rhs.groupLabel == null) {
+                        return -1;
+                    }
+                    final int result = collator.compare(lhs.groupLabel.toString(),
+                            rhs.groupLabel.toString());
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return collator.compare(lhs.label.toString(), rhs.label.toString());
+            }
+        });
+        rows.add(new Row(TYPE_HEADER, sectionRes, null, null, null, false));
+        CharSequence lastGroupLabel = null;
+        for (int i = 0; i < permissions.size(); i++) {
+            final Permission permission = permissions.get(i);
+            final boolean firstOfGroup = i == 0 || permission.groupLabel != lastGroupLabel;
+            rows.add(new Row(TYPE_PERMISSION, sectionRes,
+                    firstOfGroup ? permission.groupLabel : null, permission.label,
+                    permission.description, permission.dangerous));
+            lastGroupLabel = permission.groupLabel;
+        }
+    }
+
+    /**
+     * Returns the string of the section of the row at the specified position.
+     */
+    int getSectionRes(int position) {
+        return mRows.get(position).sectionRes;
+    }
+
+    boolean isHeader(int position) {
+        return mRows.get(position).type == TYPE_HEADER;
+    }
+
+    /**
+     * Inflates the view of a section header, for the list to pin at its top.
+     */
+    TextView newHeaderView(ViewGroup parent) {
+        return (TextView) mInflater.inflate(R.layout.permission_section_header, parent, false);
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mRows.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return 2;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return mRows.get(position).type;
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    /**
+     * Permissions with a description can be tapped to show it.
+     */
+    @Override
+    public boolean isEnabled(int position) {
+        final Row row = mRows.get(position);
+        return row.type == TYPE_PERMISSION && row.description != null;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        final Row row = mRows.get(position);
+        if (row.type == TYPE_HEADER) {
+            final TextView header = (convertView != null)
+                    ? (TextView) convertView : newHeaderView(parent);
+            header.setText(row.sectionRes);
+            return header;
+        }
+
+        final View view;
+        final ViewHolder holder;
+        if (convertView != null) {
+            view = convertView;
+            holder = (ViewHolder) view.getTag();
+        } else {
+            view = mInflater.inflate(R.layout.permission_item, parent, false);
+            holder = new ViewHolder();
+            holder.icon = (ImageView) view.findViewById(R.id.perm_icon);
+            holder.group = (TextView) view.findViewById(R.id.perm_group);
+            holder.label = (TextView) view.findViewById(R.id.perm_name);
+            view.setTag(holder);
+        }
+        holder.icon.setImageResource(row.dangerous
+                ? com.android.internal.R.drawable.ic_bullet_key_permission
+                : com.android.internal.R.drawable.ic_text_dot);
+        if (row.groupLabel != null) {
+            holder.group.setText(row.groupLabel);
+            holder.group.setVisibility(View.VISIBLE);
+        } else {
+            holder.group.setVisibility(View.GONE);
+        }
+        holder.label.setText(row.label);
+        return view;
+    }
+}
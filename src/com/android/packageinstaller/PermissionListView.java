@@ -0,0 +1,195 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.ListAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * The list of permissions of {@link PermissionListAdapter}, which keeps the header of the section
+ * at its top pinned while the section is scrolled, and which knows when it has been scrolled to
+ * its bottom, like {@link CaffeinatedScrollView}. Tapping a permission shows its description, as
+ * the permission views of {@link android.widget.AppSecurityPermissions} do.
+ */
+class PermissionListView extends ListView implements FullScrollable, AbsListView.OnScrollListener,
+        AdapterView.OnItemClickListener {
+    private static final int PAGE_SCROLL_DURATION_MILLIS = 250;
+
+    private Runnable mFullScrollAction;
+    private int mBottomSlop;
+
+    /** Header drawn over the top of the list; not a child of the list. */
+    private TextView mPinnedHeader;
+    private final Paint mPinnedHeaderBackground = new Paint();
+    private int mPinnedHeaderSectionRes;
+    /** Offset of the pinned header, which is pushed up by the header of the next section. */
+    private int mPinnedHeaderOffset;
+    private boolean mPinnedHeaderVisible;
+
+    public PermissionListView(Context context) {
+        this(context, null);
+    }
+
+    public PermissionListView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setOnScrollListener(this);
+        setOnItemClickListener(this);
+        final TypedArray a = context.obtainStyledAttributes(
+                new int[] { android.R.attr.colorBackground });
+        mPinnedHeaderBackground.setColor(a.getColor(0, 0));
+        a.recycle();
+    }
+
+    @Override
+    public void setAdapter(ListAdapter adapter) {
+        super.setAdapter(adapter);
+        mPinnedHeader = (adapter instanceof PermissionListAdapter)
+                ? ((PermissionListAdapter) adapter).newHeaderView(this) : null;
+        mPinnedHeaderSectionRes = 0;
+        mPinnedHeaderVisible = false;
+    }
+
+    /**
+     * Make this visible so we can call it
+     */
+    @Override
+    public boolean awakenScrollBars() {
+        return super.awakenScrollBars();
+    }
+
+    @Override
+    public void pageDown() {
+        smoothScrollBy(getHeight() - getPaddingTop() - getPaddingBottom(),
+                PAGE_SCROLL_DURATION_MILLIS);
+    }
+
+    @Override
+    public void setFullScrollAction(Runnable action) {
+        mFullScrollAction = action;
+        mBottomSlop = (int)(4 * getResources().getDisplayMetrics().density);
+        if (isLaidOut()) {
+            checkFullScrollAction(getFirstVisiblePosition(), getChildCount(), getCount());
+        }
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        super.onLayout(changed, l, t, r, b);
+        if (mPinnedHeader != null) {
+            layoutPinnedHeader();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (mPinnedHeader != null) {
+            updatePinnedHeader(firstVisibleItem);
+        }
+        checkFullScrollAction(firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+        final PermissionListAdapter.Row row =
+                (PermissionListAdapter.Row) getItemAtPosition(position);
+        new AlertDialog.Builder(getContext())
+                .setTitle(row.label)
+                .setMessage(row.description)
+                .setCancelable(true)
+                .show();
+    }
+
+    private void checkFullScrollAction(int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (mFullScrollAction == null || firstVisibleItem + visibleItemCount < totalItemCount) {
+            return;
+        }
+        if (visibleItemCount > 0) {
+            final int daBottom = getChildAt(visibleItemCount - 1).getBottom();
+            final int screenBottom = getHeight() - getPaddingBottom();
+            if ((daBottom - screenBottom) >= mBottomSlop) {
+                return;
+            }
+        }
+        mFullScrollAction.run();
+        mFullScrollAction = null;
+    }
+
+    private void layoutPinnedHeader() {
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        mPinnedHeader.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+        mPinnedHeader.layout(0, 0, width, mPinnedHeader.getMeasuredHeight());
+    }
+
+    private void updatePinnedHeader(int firstVisibleItem) {
+        final PermissionListAdapter adapter = (PermissionListAdapter) getAdapter();
+        final View first = getChildAt(0);
+        // The first header needs no pinning while it is in place.
+        final boolean visible = first != null
+                && (firstVisibleItem > 0 || first.getTop() < getPaddingTop());
+        int offset = 0;
+        if (visible) {
+            final int sectionRes = adapter.getSectionRes(firstVisibleItem);
+            if (sectionRes != mPinnedHeaderSectionRes) {
+                mPinnedHeaderSectionRes = sectionRes;
+                mPinnedHeader.setText(sectionRes);
+                layoutPinnedHeader();
+            }
+            final View next = getChildAt(1);
+            if (next != null && adapter.isHeader(firstVisibleItem + 1)) {
+                offset = Math.min(0, next.getTop() - getPaddingTop()
+                        - mPinnedHeader.getHeight());
+            }
+        }
+        if (visible != mPinnedHeaderVisible || offset != mPinnedHeaderOffset) {
+            mPinnedHeaderVisible = visible;
+            mPinnedHeaderOffset = offset;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        super.dispatchDraw(canvas);
+        if (mPinnedHeader != null && mPinnedHeaderVisible) {
+            final int saveCount = canvas.save();
+            canvas.clipRect(getPaddingLeft(), getPaddingTop(), getWidth() - getPaddingRight(),
+                    getHeight() - getPaddingBottom());
+            canvas.translate(getPaddingLeft(), getPaddingTop() + mPinnedHeaderOffset);
+            canvas.drawRect(0, 0, mPinnedHeader.getWidth(), mPinnedHeader.getHeight(),
+                    mPinnedHeaderBackground);
+            mPinnedHeader.draw(canvas);
+            canvas.restoreToCount(saveCount);
+        }
+    }
+}
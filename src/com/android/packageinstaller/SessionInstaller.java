@@ -0,0 +1,615 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.app.PendingIntent;
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ManifestDigest;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.PackageParserException;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import libcore.io.IoUtils;
+
+/**
+ * Installs an APK by streaming it from a {@link ParcelFileDescriptor} into a
+ * {@link PackageInstaller} session and committing the session. The APK is copied straight from
+ * the descriptor into the session through a fixed-size buffer, so any readable source can be
+ * installed, including pipes from content providers, without a temporary copy and with the same
+ * memory use whatever the size of the APK.
+ *
+ * <p>Streaming and committing can be separated: {@link #stage()} streams the APK while the user
+ * is still reviewing the install, and {@link #commit()} only commits the session, waiting for the
+ * streaming to finish if necessary. {@link #abandon()} discards the session and the staged bytes.
+ * A staged installer is handed from the confirmation screen to the progress screen with
+ * {@link #publish()} and {@link #claim(int)}.
+ *
+ * <p>If the package which was reviewed is set with {@link #setExpectedPackage}, the APK is read
+ * back from the session once it has been streamed, and the session is only committed if the
+ * staged APK is that package. Sources such as content providers may serve other bytes than the
+ * ones that were parsed for review, and this checks the bytes that are actually installed.
+ *
+ * <p>Progress is reported from {@link PackageInstaller.SessionCallback}, covering both the
+ * streaming of the APK, which this installer publishes as the staging progress of the session,
+ * and the install itself. The result is reported with the legacy {@code PackageManager.INSTALL_*}
+ * status codes, on the main thread, exactly once.
+ */
+final class SessionInstaller {
+    private static final String TAG = "SessionInstaller";
+
+    private static final String ACTION_SESSION_COMMITTED =
+            "com.android.packageinstaller.action.SESSION_COMMITTED";
+
+    /** Name of the APK within the session. */
+    private static final String BASE_APK_NAME = "base.apk";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Smallest change of the staging progress that is published to the session. The session
+     * drops smaller changes anyway, so this only saves binder calls.
+     */
+    private static final float STAGING_PROGRESS_STEP = 0.01f;
+
+    /** Installers published for handoff, keyed by token. Only accessed on the main thread. */
+    private static final SparseArray<SessionInstaller> sPublished =
+            new SparseArray<SessionInstaller>();
+    private static int sNextToken = 1;
+
+    interface Callback {
+        /**
+         * Called on the main thread when the overall progress of the install changes.
+         *
+         * @param progress progress between 0 and 1
+         */
+        void onProgressChanged(float progress);
+
+        /**
+         * Called on the main thread once the install has finished.
+         *
+         * @param legacyStatus {@link PackageManager#INSTALL_SUCCEEDED} or one of the
+         *        {@code PackageManager.INSTALL_FAILED_*} codes
+         */
+        void onInstallFinished(int legacyStatus);
+    }
+
+    private final Context mContext;
+    private final PackageInstaller mInstaller;
+    private final ParcelFileDescriptor mSource;
+    private final PackageInstaller.SessionParams mParams;
+    private Callback mCallback;
+
+    /** Identity of the APK which was reviewed, checked against the source; may be null. */
+    private PackageParseCache.Key mExpectedIdentity;
+    /** Package which was reviewed, checked against the staged APK; may be null. */
+    private String mExpectedPackageName;
+    private ManifestDigest mExpectedManifestDigest;
+
+    /** Written by the staging task, then read on the main thread. */
+    private volatile int mSessionId = -1;
+
+    private StageTask mStageTask;
+    /** Result of staging the session, or null while it is in progress. */
+    private Integer mStageStatus;
+    private boolean mCommitRequested;
+    private boolean mAbandoned;
+
+    private long mStagingStartedMillis;
+    private long mCommitStartedMillis;
+    private volatile long mStagingDurationMillis;
+    private volatile long mStagedBytes;
+    private long mCommitDurationMillis;
+
+    private final PackageInstaller.SessionCallback mSessionCallback =
+            new PackageInstaller.SessionCallback() {
+        @Override
+        public void onCreated(int sessionId) {}
+
+        @Override
+        public void onBadgingChanged(int sessionId) {}
+
+        @Override
+        public void onActiveChanged(int sessionId, boolean active) {}
+
+        @Override
+        public void onProgressChanged(int sessionId, float progress) {
+            if (sessionId == mSessionId && mCallback != null) {
+                mCallback.onProgressChanged(progress);
+            }
+        }
+
+        @Override
+        public void onFinished(int sessionId, boolean success) {}
+    };
+
+    private final BroadcastReceiver mCommitReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getIntExtra(PackageInstaller.EXTRA_SESSION_ID, -1) != mSessionId) {
+                return;
+            }
+            final int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS,
+                    PackageInstaller.STATUS_FAILURE);
+            if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+                // Only happens if the installer has lost the INSTALL_PACKAGES permission.
+                final Intent confirm = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+                if (confirm != null && pinToThisInstaller(confirm)) {
+                    confirm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    mContext.startActivity(confirm);
+                    return;
+                }
+                Log.w(TAG, "Session " + mSessionId + " asked to confirm with " + confirm);
+                mContext.unregisterReceiver(this);
+                finish(PackageManager.INSTALL_FAILED_INTERNAL_ERROR);
+                return;
+            }
+            mContext.unregisterReceiver(this);
+            mCommitDurationMillis = SystemClock.elapsedRealtime() - mCommitStartedMillis;
+            final int legacyStatus = intent.getIntExtra(PackageInstaller.EXTRA_LEGACY_STATUS,
+                    PackageManager.INSTALL_FAILED_INTERNAL_ERROR);
+            if (legacyStatus != PackageManager.INSTALL_SUCCEEDED) {
+                Log.w(TAG, "Session " + mSessionId + " failed: "
+                        + intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE));
+            }
+            finish(legacyStatus);
+        }
+    };
+
+    /**
+     * @param source the APK to install; this installer takes ownership of the descriptor and
+     *        closes it once the APK has been streamed
+     * @param callback receiver of the progress and result, or {@code null} to set it later with
+     *        {@link #setCallback}, before committing
+     */
+    SessionInstaller(Context context, ParcelFileDescriptor source,
+            PackageInstaller.SessionParams params, Callback callback) {
+        mContext = context.getApplicationContext();
+        mInstaller = mContext.getPackageManager().getPackageInstaller();
+        mSource = source;
+        mParams = params;
+        mCallback = callback;
+    }
+
+    /**
+     * Creates the parameters of a session installing the specified package. Sessions always
+     * replace existing packages, and are attributed to this installer.
+     *
+     * @param locationFlags {@link PackageManager#INSTALL_INTERNAL},
+     *        {@link PackageManager#INSTALL_EXTERNAL} or {@code 0}; see
+     *        {@link InstallLocationPolicy}
+     */
+    static PackageInstaller.SessionParams createSessionParams(ApplicationInfo appInfo,
+            CharSequence label, long sizeBytes, int locationFlags, Uri originatingUri,
+            Uri referrerUri) {
+        final PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        params.setAppPackageName(appInfo.packageName);
+        params.setAppLabel(label);
+        if (appInfo.installLocation != PackageInfo.INSTALL_LOCATION_UNSPECIFIED) {
+            params.setInstallLocation(appInfo.installLocation);
+        }
+        if (sizeBytes > 0) {
+            params.setSize(sizeBytes);
+        }
+        params.installFlags |= locationFlags;
+        params.setOriginatingUri(originatingUri);
+        params.setReferrerUri(referrerUri);
+        return params;
+    }
+
+    void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Makes staging fail unless the source is still the reviewed file, with the same size,
+     * modification time and inode, both before and after it has been streamed.
+     */
+    void setExpectedIdentity(PackageParseCache.Key identity) {
+        mExpectedIdentity = identity;
+    }
+
+    /**
+     * Makes staging fail unless the APK staged in the session has the specified package name and
+     * manifest digest, as parsed when the install was reviewed. The digest is only skipped if it
+     * is {@code null} and the source is checked with {@link #setExpectedIdentity} instead.
+     */
+    void setExpectedPackage(String packageName, ManifestDigest manifestDigest) {
+        mExpectedPackageName = packageName;
+        mExpectedManifestDigest = manifestDigest;
+    }
+
+    /**
+     * Starts streaming the APK into a new session in the background, then commits the session.
+     */
+    void start() {
+        stage();
+        commit();
+    }
+
+    /**
+     * Starts streaming the APK into a new session in the background. The session is only
+     * committed once {@link #commit()} is called.
+     */
+    void stage() {
+        mStagingStartedMillis = SystemClock.elapsedRealtime();
+        mInstaller.registerSessionCallback(mSessionCallback, new Handler());
+        mStageTask = new StageTask();
+        mStageTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Commits the session as soon as the APK has been streamed into it. The callback must have
+     * been set.
+     */
+    void commit() {
+        mCommitRequested = true;
+        if (mStageStatus == null) {
+            // Committed by the staging task once it completes.
+            return;
+        }
+        if (mStageStatus != PackageManager.INSTALL_SUCCEEDED) {
+            finish(mStageStatus);
+            return;
+        }
+        commitSession();
+    }
+
+    /**
+     * Stops streaming and discards the session, if it has not been committed yet. No result is
+     * reported.
+     */
+    void abandon() {
+        if (mCommitRequested || mAbandoned) {
+            return;
+        }
+        mAbandoned = true;
+        mInstaller.unregisterSessionCallback(mSessionCallback);
+        if (mStageStatus == null) {
+            // The staging task abandons the session when it notices.
+            if (mStageTask != null) {
+                mStageTask.cancel(false);
+            }
+        } else if (mStageStatus == PackageManager.INSTALL_SUCCEEDED) {
+            abandonSession();
+        }
+    }
+
+    /**
+     * Makes this installer available to {@link #claim(int)}, for example from another activity.
+     *
+     * @return the token identifying this installer
+     */
+    int publish() {
+        final int token = sNextToken++;
+        sPublished.put(token, this);
+        return token;
+    }
+
+    /**
+     * Returns the installer published with the specified token, or {@code null} if there is none,
+     * for example because the process has been restarted since. Each installer can only be claimed
+     * once.
+     */
+    static SessionInstaller claim(int token) {
+        final SessionInstaller installer = sPublished.get(token);
+        sPublished.remove(token);
+        return installer;
+    }
+
+    /**
+     * Returns how long it took to create the session and stream the APK into it, in milliseconds.
+     * Only valid once the install has finished.
+     */
+    long getStagingDurationMillis() {
+        return mStagingDurationMillis;
+    }
+
+    /**
+     * Returns how many bytes were streamed into the session. Only valid once the install has
+     * finished.
+     */
+    long getStagedBytes() {
+        return mStagedBytes;
+    }
+
+    /**
+     * Returns how long the package manager took to verify, optimize and install the package once
+     * the session was committed, in milliseconds, or 0 if the session was never committed. Only
+     * valid once the install has finished.
+     */
+    long getCommitDurationMillis() {
+        return mCommitDurationMillis;
+    }
+
+    private void finish(int legacyStatus) {
+        mInstaller.unregisterSessionCallback(mSessionCallback);
+        mCallback.onInstallFinished(legacyStatus);
+    }
+
+    private void abandonSession() {
+        try {
+            mInstaller.abandonSession(mSessionId);
+        } catch (SecurityException e) {
+            // The session is already gone.
+        }
+    }
+
+    private class StageTask extends AsyncTask<Void, Void, Integer> {
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                mSessionId = mInstaller.createSession(mParams);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to create session", e);
+                IoUtils.closeQuietly(mSource);
+                return getFailureStatus(e);
+            }
+            PackageInstaller.Session session = null;
+            try {
+                session = mInstaller.openSession(mSessionId);
+                writeSession(session, this);
+                return PackageManager.INSTALL_SUCCEEDED;
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to stage session " + mSessionId, e);
+                if (session != null) {
+                    session.abandon();
+                }
+                return getFailureStatus(e);
+            } finally {
+                IoUtils.closeQuietly(session);
+                IoUtils.closeQuietly(mSource);
+                mStagingDurationMillis = SystemClock.elapsedRealtime() - mStagingStartedMillis;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer status) {
+            mStageStatus = status;
+            if (mCommitRequested) {
+                commit();
+            }
+        }
+
+        @Override
+        protected void onCancelled(Integer status) {
+            mStageStatus = status;
+            if (status != null && status == PackageManager.INSTALL_SUCCEEDED) {
+                // Abandoned after the APK had been streamed.
+                abandonSession();
+            }
+        }
+    }
+
+    private void writeSession(PackageInstaller.Session session, AsyncTask<?, ?, ?> task)
+            throws IOException {
+        if (mExpectedIdentity == null && mExpectedManifestDigest == null) {
+            // The bytes staged could be anything.
+            throw new StagedPackageException("Nothing to check the staged APK against", null);
+        }
+        checkIdentity();
+        final long length = mSource.getStatSize();
+        try {
+            // The descriptor may have been read through already; pipes can't be rewound.
+            Os.lseek(mSource.getFileDescriptor(), 0, OsConstants.SEEK_SET);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ESPIPE) {
+                throw e.rethrowAsIOException();
+            }
+        }
+        final InputStream in = new FileInputStream(mSource.getFileDescriptor());
+        OutputStream out = null;
+        try {
+            out = session.openWrite(BASE_APK_NAME, 0, length);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long written = 0;
+            float publishedProgress = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (task.isCancelled()) {
+                    throw new InterruptedIOException("Abandoned");
+                }
+                out.write(buffer, 0, count);
+                written += count;
+                mStagedBytes = written;
+                if (length > 0) {
+                    final float progress = Math.min(1f, (float) written / length);
+                    if (progress - publishedProgress >= STAGING_PROGRESS_STEP) {
+                        session.setStagingProgress(progress);
+                        publishedProgress = progress;
+                    }
+                }
+            }
+            session.fsync(out);
+            checkIdentity();
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        checkStagedPackage(session);
+        session.setStagingProgress(1f);
+    }
+
+    /**
+     * Checks that the APK staged in the session is the package which was reviewed. The staged
+     * APK is read back through the session rather than from the source, which may have changed.
+     */
+    private void checkStagedPackage(PackageInstaller.Session session) throws IOException {
+        if (mExpectedPackageName == null) {
+            return;
+        }
+        final InputStream in = session.openRead(BASE_APK_NAME);
+        ParcelFileDescriptor fd = null;
+        try {
+            fd = ParcelFileDescriptor.dup(((FileInputStream) in).getFD());
+            final File stagedFile = PackageUtil.getFileForDescriptor(fd);
+            final String packageName;
+            try {
+                packageName = PackageParser.parseApkLite(stagedFile, 0).packageName;
+            } catch (PackageParserException e) {
+                throw new StagedPackageException("Failed to parse staged APK", e);
+            }
+            if (!isExpectedPackageName(packageName)) {
+                throw new StagedPackageException("Staged package " + packageName + " is not "
+                        + mExpectedPackageName, null);
+            }
+            // Mapped privately, as the staged file is not worth caching.
+            final MappedApk stagedApk = MappedApk.open(stagedFile);
+            final ManifestDigest manifestDigest;
+            try {
+                manifestDigest = PackageLiteParser.getManifestDigest(stagedApk);
+            } finally {
+                stagedApk.close();
+            }
+            if (mExpectedManifestDigest != null
+                    && !mExpectedManifestDigest.equals(manifestDigest)) {
+                throw new StagedPackageException("Staged manifest of " + packageName
+                        + " differs from the reviewed one", null);
+            }
+        } finally {
+            IoUtils.closeQuietly(fd);
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Whether the staged package name is the expected one, allowing for packages that have been
+     * renamed, whose reviewed name is the current name of the package, as the confirmation
+     * screen resolves it.
+     */
+    private boolean isExpectedPackageName(String packageName) {
+        if (mExpectedPackageName.equals(packageName)) {
+            return true;
+        }
+        final String[] currentNames = mContext.getPackageManager()
+                .canonicalToCurrentPackageNames(new String[] { packageName });
+        return currentNames != null && currentNames.length > 0
+                && mExpectedPackageName.equals(currentNames[0]);
+    }
+
+    private void checkIdentity() throws IOException {
+        if (mExpectedIdentity == null) {
+            return;
+        }
+        final StructStat stat;
+        try {
+            stat = Os.fstat(mSource.getFileDescriptor());
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        if (stat.st_size != mExpectedIdentity.size || stat.st_mtime != mExpectedIdentity.mtime
+                || stat.st_ino != mExpectedIdentity.inode) {
+            throw new IOException(mExpectedIdentity + " changed since it was reviewed");
+        }
+    }
+
+    /**
+     * Makes the confirmation intent of a session explicit, if it is the one of this package
+     * installer, the only activity a session should ask to confirm with.
+     *
+     * @return whether the intent resolves to this package installer
+     */
+    private boolean pinToThisInstaller(Intent confirm) {
+        if (!PackageInstaller.ACTION_CONFIRM_PERMISSIONS.equals(confirm.getAction())) {
+            return false;
+        }
+        final ResolveInfo resolved = mContext.getPackageManager().resolveActivity(confirm, 0);
+        if (resolved == null
+                || !mContext.getPackageName().equals(resolved.activityInfo.packageName)) {
+            return false;
+        }
+        confirm.setComponent(new ComponentName(resolved.activityInfo.packageName,
+                resolved.activityInfo.name));
+        return true;
+    }
+
+    private void commitSession() {
+        final IntentFilter filter = new IntentFilter(ACTION_SESSION_COMMITTED);
+        // The result is sent through the pending intent below, as this package, which holds
+        // INSTALL_PACKAGES; other apps can't hold it, and so can't forge a result.
+        mContext.registerReceiver(mCommitReceiver, filter,
+                Manifest.permission.INSTALL_PACKAGES, null);
+        final Intent intent = new Intent(ACTION_SESSION_COMMITTED);
+        intent.setPackage(mContext.getPackageName());
+        final PendingIntent pendingIntent = PendingIntent.getBroadcast(mContext, mSessionId,
+                intent, PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
+        PackageInstaller.Session session = null;
+        mCommitStartedMillis = SystemClock.elapsedRealtime();
+        try {
+            session = mInstaller.openSession(mSessionId);
+            session.commit(pendingIntent.getIntentSender());
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to commit session " + mSessionId, e);
+            mContext.unregisterReceiver(mCommitReceiver);
+            if (session != null) {
+                session.abandon();
+            }
+            finish(PackageManager.INSTALL_FAILED_INTERNAL_ERROR);
+        } finally {
+            IoUtils.closeQuietly(session);
+        }
+    }
+
+    /**
+     * Maps a failure to stage a session to a legacy status code, so that running out of space is
+     * reported like it is for legacy installs.
+     */
+    private static int getFailureStatus(Exception e) {
+        if (e instanceof StagedPackageException) {
+            return PackageManager.INSTALL_FAILED_INVALID_APK;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ErrnoException && ((ErrnoException) t).errno == OsConstants.ENOSPC) {
+                return PackageManager.INSTALL_FAILED_INSUFFICIENT_STORAGE;
+            }
+        }
+        return PackageManager.INSTALL_FAILED_INTERNAL_ERROR;
+    }
+
+    /** Thrown when the staged APK is not the package which was reviewed. */
+    private static final class StagedPackageException extends IOException {
+        StagedPackageException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.FrameLayout;
 import android.widget.TabHost;
 import android.widget.TabWidget;
 
@@ -38,6 +39,11 @@ import java.util.ArrayList;
  * view to show as the tab content.  It listens to changes in tabs, and takes
  * care of switch to the correct paged in the ViewPager whenever the selected
  * tab changes.
+ *
+ * <p>Tabs may be given a {@link PageFactory} instead of their content, in
+ * which case the content is only created when the page starts to be shown,
+ * rather than when the ViewPager instantiates it as a neighbour of the current
+ * page. Pages are kept when they scroll away and reused when they come back.
  */
 public class TabsAdapter extends PagerAdapter
         implements TabHost.OnTabChangeListener, ViewPager.OnPageChangeListener {
@@ -48,13 +54,25 @@ public class TabsAdapter extends PagerAdapter
     private final Rect mTempRect = new Rect();
     private TabHost.OnTabChangeListener mOnTabChangeListener;
 
+    /**
+     * Creates the content of a page the first time it is shown.
+     */
+    public interface PageFactory {
+        View createPage();
+    }
+
     static final class TabInfo {
         private final String tag;
-        private final View view;
+        private final PageFactory factory;
+        /** What the ViewPager holds: the content, or a frame waiting for it. */
+        private View page;
+        private View content;
 
-        TabInfo(String _tag, View _view) {
+        TabInfo(String _tag, PageFactory _factory, View _content) {
             tag = _tag;
-            view = _view;
+            factory = _factory;
+            page = _content;
+            content = _content;
         }
     }
 
@@ -84,10 +102,19 @@ public class TabsAdapter extends PagerAdapter
     }
 
     public void addTab(TabHost.TabSpec tabSpec, View view) {
-        tabSpec.setContent(new DummyTabFactory(mContext));
-        String tag = tabSpec.getTag();
+        addTab(tabSpec, new TabInfo(tabSpec.getTag(), null, view));
+    }
 
-        TabInfo info = new TabInfo(tag, view);
+    /**
+     * Adds a tab whose content is created by the specified factory when it is
+     * first shown.
+     */
+    public void addTab(TabHost.TabSpec tabSpec, PageFactory factory) {
+        addTab(tabSpec, new TabInfo(tabSpec.getTag(), factory, null));
+    }
+
+    private void addTab(TabHost.TabSpec tabSpec, TabInfo info) {
+        tabSpec.setContent(new DummyTabFactory(mContext));
         mTabs.add(info);
         mTabHost.addTab(tabSpec);
         notifyDataSetChanged();
@@ -100,9 +127,15 @@ public class TabsAdapter extends PagerAdapter
 
     @Override
     public Object instantiateItem(ViewGroup container, int position) {
-        View view = mTabs.get(position).view;
-        container.addView(view);
-        return view;
+        TabInfo info = mTabs.get(position);
+        if (info.page == null) {
+            info.page = new FrameLayout(mContext);
+        }
+        if (position == mViewPager.getCurrentItem()) {
+            ensureContent(position);
+        }
+        container.addView(info.page);
+        return info.page;
     }
 
     @Override
@@ -115,6 +148,20 @@ public class TabsAdapter extends PagerAdapter
         return view == object;
     }
 
+    /**
+     * Creates the content of the page at the specified position if it has not
+     * been yet.
+     */
+    private void ensureContent(int position) {
+        TabInfo info = mTabs.get(position);
+        if (info.content != null || info.page == null) {
+            return;
+        }
+        info.content = info.factory.createPage();
+        ((ViewGroup) info.page).addView(info.content, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+    }
+
     public void setOnTabChangedListener(TabHost.OnTabChangeListener listener) {
         mOnTabChangeListener = listener;
     }
@@ -130,10 +177,16 @@ public class TabsAdapter extends PagerAdapter
 
     @Override
     public void onPageScrolled(int position, float positionOffset, int positionOffsetPixels) {
+        // The page to the right is being dragged into view.
+        if (positionOffset > 0 && position + 1 < mTabs.size()) {
+            ensureContent(position + 1);
+        }
     }
 
     @Override
     public void onPageSelected(int position) {
+        ensureContent(position);
+
         // Unfortunately when TabHost changes the current tab, it kindly
         // also takes care of putting focus on it when not in touch mode.
         // The jerk.
@@ -151,9 +204,9 @@ public class TabsAdapter extends PagerAdapter
         widget.requestRectangleOnScreen(mTempRect, false);
 
         // Make sure the scrollbars are visible for a moment after selection
-        final View contentView = mTabs.get(position).view;
-        if (contentView instanceof CaffeinatedScrollView) {
-            ((CaffeinatedScrollView) contentView).awakenScrollBars();
+        final View contentView = mTabs.get(position).content;
+        if (contentView instanceof FullScrollable) {
+            ((FullScrollable) contentView).awakenScrollBars();
         }
     }
 
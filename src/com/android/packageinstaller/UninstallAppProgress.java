@@ -25,7 +25,6 @@ import android.content.pm.IPackageDeleteObserver2;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
-import android.content.pm.UserInfo;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -116,50 +115,25 @@ public class UninstallAppProgress extends Activity implements OnClickListener {
                             statusText = getString(R.string.uninstall_failed_device_policy_manager);
                             break;
                         case PackageManager.DELETE_FAILED_OWNER_BLOCKED:
-                            UserManager userManager =
-                                    (UserManager) getSystemService(Context.USER_SERVICE);
-                            IPackageManager packageManager = IPackageManager.Stub.asInterface(
-                                    ServiceManager.getService("package"));
-                            List<UserInfo> users = userManager.getUsers();
-                            int blockingUserId = UserHandle.USER_NULL;
-                            for (int i = 0; i < users.size(); ++i) {
-                                final UserInfo user = users.get(i);
-                                try {
-                                    if (packageManager.getBlockUninstallForUser(packageName,
-                                            user.id)) {
-                                        blockingUserId = user.id;
-                                        break;
+                            // Explained once the blocking user is known.
+                            UninstallBlockResolver.resolve(UninstallAppProgress.this,
+                                    packageName, mUser.getIdentifier(), true,
+                                    new UninstallBlockResolver.Callback() {
+                                @Override
+                                public void onBlockingUserResolved(int blockingUserId) {
+                                    if (!isFinishing() && !isDestroyed()) {
+                                        showOwnerBlocked(packageName, blockingUserId);
                                     }
-                                } catch (RemoteException e) {
-                                    // Shouldn't happen.
-                                    Log.e(TAG, "Failed to talk to package manager", e);
                                 }
-                            }
-                            mDeviceManagerButton.setVisibility(View.VISIBLE);
-                            if (blockingUserId == UserHandle.USER_OWNER) {
-                                statusText = getString(R.string.uninstall_blocked_device_owner);
-                            } else if (blockingUserId == UserHandle.USER_NULL) {
-                                Log.d(TAG, "Uninstall failed for " + packageName + " with code "
-                                        + msg.arg1 + " no blocking user");
-                                statusText = getString(R.string.uninstall_failed);
-                            } else {
-                                String userName = userManager.getUserInfo(blockingUserId).name;
-                                statusText = String.format(
-                                        getString(R.string.uninstall_blocked_profile_owner),
-                                        userName);
-                            }
-                            break;
+                            });
+                            return;
                         default:
                             Log.d(TAG, "Uninstall failed for " + packageName + " with code "
                                     + msg.arg1);
                             statusText = getString(R.string.uninstall_failed);
                             break;
                     }
-                    mStatusTextView.setText(statusText);
-
-                    // Hide the progress bar; Show the ok button
-                    mProgressBar.setVisibility(View.INVISIBLE);
-                    mOkPanel.setVisibility(View.VISIBLE);
+                    showStatus(statusText);
                     break;
                 default:
                     break;
@@ -167,6 +141,32 @@ public class UninstallAppProgress extends Activity implements OnClickListener {
         }
     };
 
+    private void showOwnerBlocked(String packageName, int blockingUserId) {
+        final String statusText;
+        mDeviceManagerButton.setVisibility(View.VISIBLE);
+        if (blockingUserId == UserHandle.USER_OWNER) {
+            statusText = getString(R.string.uninstall_blocked_device_owner);
+        } else if (blockingUserId == UserHandle.USER_NULL) {
+            Log.d(TAG, "Uninstall failed for " + packageName + " with code "
+                    + PackageManager.DELETE_FAILED_OWNER_BLOCKED + " no blocking user");
+            statusText = getString(R.string.uninstall_failed);
+        } else {
+            UserManager userManager = (UserManager) getSystemService(Context.USER_SERVICE);
+            String userName = userManager.getUserInfo(blockingUserId).name;
+            statusText = String.format(getString(R.string.uninstall_blocked_profile_owner),
+                    userName);
+        }
+        showStatus(statusText);
+    }
+
+    private void showStatus(String statusText) {
+        mStatusTextView.setText(statusText);
+
+        // Hide the progress bar; Show the ok button
+        mProgressBar.setVisibility(View.INVISIBLE);
+        mOkPanel.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
@@ -193,6 +193,11 @@ public class UninstallAppProgress extends Activity implements OnClickListener {
     
     class PackageDeleteObserver extends IPackageDeleteObserver.Stub {
         public void packageDeleted(String packageName, int returnCode) {
+            if (returnCode == PackageManager.DELETE_SUCCEEDED
+                    || returnCode == PackageManager.DELETE_FAILED_OWNER_BLOCKED) {
+                // Whatever was known about the package's block is out of date.
+                UninstallBlockResolver.invalidate(packageName);
+            }
             Message msg = mHandler.obtainMessage(UNINSTALL_COMPLETE);
             msg.arg1 = returnCode;
             msg.obj = packageName;
@@ -235,6 +240,49 @@ public class UninstallAppProgress extends Activity implements OnClickListener {
         mOkButton = (Button) findViewById(R.id.ok_button);
         mOkButton.setOnClickListener(this);
         mOkPanel.setVisibility(View.INVISIBLE);
+
+        // Don't attempt deletes which are bound to be blocked.
+        UninstallBlockResolver.resolve(this, mAppInfo.packageName, mUser.getIdentifier(),
+                mAllUsers, new UninstallBlockResolver.Callback() {
+            @Override
+            public void onBlockingUserResolved(int blockingUserId) {
+                if (isFinishing() || isDestroyed()) {
+                    if (!isChangingConfigurations()) {
+                        // Gone before the delete was attempted; don't leave the caller waiting.
+                        notifyCallbackAborted();
+                    }
+                    return;
+                }
+                if (blockingUserId != UserHandle.USER_NULL) {
+                    Message msg = mHandler.obtainMessage(UNINSTALL_COMPLETE);
+                    msg.arg1 = PackageManager.DELETE_FAILED_OWNER_BLOCKED;
+                    msg.obj = mAppInfo.packageName;
+                    mHandler.sendMessage(msg);
+                } else {
+                    deletePackage();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reports to {@link PackageInstaller#EXTRA_CALLBACK}, if any, that the package was not deleted
+     * because this activity went away before the delete could be attempted.
+     */
+    private void notifyCallbackAborted() {
+        if (mCallback == null) {
+            return;
+        }
+        final IPackageDeleteObserver2 observer = IPackageDeleteObserver2.Stub
+                .asInterface(mCallback);
+        try {
+            observer.onPackageDeleted(mAppInfo.packageName,
+                    PackageManager.DELETE_FAILED_INTERNAL_ERROR, null);
+        } catch (RemoteException ignored) {
+        }
+    }
+
+    private void deletePackage() {
         IPackageManager packageManager =
                 IPackageManager.Stub.asInterface(ServiceManager.getService("package"));
         PackageDeleteObserver observer = new PackageDeleteObserver();
@@ -0,0 +1,157 @@
+/*
+**
+** Copyright 2015, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.content.pm.IPackageManager;
+import android.content.pm.UserInfo;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Finds out which user, if any, blocks the uninstall of a package, off the main thread. Device
+ * and profile owners block uninstalls through
+ * {@link IPackageManager#getBlockUninstallForUser}, which has to be asked once per user.
+ *
+ * <p>Answers are cached per package and user for a short while, so that checking a package
+ * before deleting it and explaining why its delete failed cost a single round of queries. Owners
+ * can change the block at any time, so a cached answer never outlives {@link #MAX_AGE_MILLIS}.
+ */
+final class UninstallBlockResolver {
+    private static final String TAG = "UninstallBlockResolver";
+
+    /** How long a cached answer is trusted for. */
+    private static final long MAX_AGE_MILLIS = 10 * 1000;
+
+    interface Callback {
+        /**
+         * Called on the main thread with the user blocking the uninstall, or
+         * {@link UserHandle#USER_NULL} if no user does.
+         */
+        void onBlockingUserResolved(int blockingUserId);
+    }
+
+    private static final class Answer {
+        final boolean blocked;
+        final long timeMillis;
+
+        Answer(boolean blocked, long timeMillis) {
+            this.blocked = blocked;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    /** Cached answers keyed by {@link #getKey(String, int)}. */
+    private static final HashMap<String, Answer> sAnswers = new HashMap<String, Answer>();
+
+    private UninstallBlockResolver() {}
+
+    /**
+     * Resolves the user blocking the uninstall of the specified package.
+     *
+     * @param userId the user the package is uninstalled for
+     * @param allUsers whether the package is uninstalled for all users, in which case any user can
+     *         block it, as with {@code PackageManager.DELETE_ALL_USERS}
+     */
+    static void resolve(Context context, final String packageName, final int userId,
+            final boolean allUsers, final Callback callback) {
+        final UserManager userManager = (UserManager) context.getSystemService(
+                Context.USER_SERVICE);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int blockingUserId = allUsers
+                        ? findBlockingUser(userManager, packageName)
+                        : (isBlocked(packageName, userId) ? userId : UserHandle.USER_NULL);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBlockingUserResolved(blockingUserId);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forgets the answers cached for the specified package, e.g. once it has been deleted or the
+     * package manager disagreed with them.
+     */
+    static void invalidate(String packageName) {
+        synchronized (sAnswers) {
+            final String suffix = ":" + packageName;
+            final Iterator<String> keys = sAnswers.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().endsWith(suffix)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    private static int findBlockingUser(UserManager userManager, String packageName) {
+        final List<UserInfo> users = userManager.getUsers();
+        for (int i = 0; i < users.size(); ++i) {
+            final int userId = users.get(i).id;
+            if (isBlocked(packageName, userId)) {
+                return userId;
+            }
+        }
+        return UserHandle.USER_NULL;
+    }
+
+    private static boolean isBlocked(String packageName, int userId) {
+        final String key = getKey(packageName, userId);
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (sAnswers) {
+            final Answer answer = sAnswers.get(key);
+            if (answer != null && now - answer.timeMillis < MAX_AGE_MILLIS) {
+                return answer.blocked;
+            }
+        }
+        final boolean blocked;
+        try {
+            final IPackageManager packageManager = IPackageManager.Stub.asInterface(
+                    ServiceManager.getService("package"));
+            blocked = packageManager.getBlockUninstallForUser(packageName, userId);
+        } catch (RemoteException e) {
+            // Shouldn't happen. Let the package manager decide when deleting.
+            Log.e(TAG, "Failed to talk to package manager", e);
+            return false;
+        }
+        synchronized (sAnswers) {
+            sAnswers.put(key, new Answer(blocked, now));
+        }
+        return blocked;
+    }
+
+    private static String getKey(String packageName, int userId) {
+        return userId + ":" + packageName;
+    }
+}